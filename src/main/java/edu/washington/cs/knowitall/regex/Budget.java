@@ -0,0 +1,100 @@
+package edu.washington.cs.knowitall.regex;
+
+import java.util.concurrent.TimeUnit;
+
+import edu.washington.cs.knowitall.regex.RegexException.BudgetExceededException;
+
+/**
+ * A limit on the work of the searches given it, and a way to stop them
+ * from another thread.  A search charges the budget one step for each
+ * token it reads and one for each thread of the NFA it carries over a
+ * token, and fails with a {@link BudgetExceededException} once it has
+ * taken more steps than allowed, once the deadline passes, or once the
+ * budget is cancelled.  The steps of all the searches given a budget
+ * count against it, so a budget can bound the work on a whole document.
+ *
+ * The deadline is only checked every so many charges, since reading the
+ * clock costs more than a step.  A budget may be cancelled from any
+ * thread, but only one search at a time may be charged to it.
+ */
+public class Budget {
+    /**
+     * The number of steps of a budget without a limit on them.
+     */
+    public static final long UNLIMITED = Long.MAX_VALUE;
+
+    /**
+     * The charges between reads of the clock.
+     */
+    private static final int CHECK_INTERVAL = 256;
+
+    private final long maxSteps;
+    private final boolean hasDeadline;
+    private final long deadline;
+
+    private volatile boolean cancelled;
+    private long steps;
+    private int untilCheck = CHECK_INTERVAL;
+
+    /**
+     * A budget of {@code maxSteps} steps, without a deadline.
+     */
+    public Budget(long maxSteps) {
+        this.maxSteps = maxSteps;
+        this.hasDeadline = false;
+        this.deadline = 0;
+    }
+
+    /**
+     * A budget of {@code maxSteps} steps that also runs out
+     * {@code timeout} from now.
+     */
+    public Budget(long maxSteps, long timeout, TimeUnit unit) {
+        this.maxSteps = maxSteps;
+        this.hasDeadline = true;
+        this.deadline = System.nanoTime() + unit.toNanos(timeout);
+    }
+
+    /**
+     * Stop the searches charged to this budget.  They fail at their next
+     * step.
+     */
+    public void cancel() {
+        this.cancelled = true;
+    }
+
+    public boolean isCancelled() {
+        return this.cancelled;
+    }
+
+    /**
+     * @return the steps charged to this budget so far.
+     */
+    public long stepsTaken() {
+        return this.steps;
+    }
+
+    /**
+     * Charge {@code steps} steps to the budget.
+     * @throws BudgetExceededException if the budget is cancelled or runs
+     * out.
+     */
+    void charge(long steps) {
+        this.steps += steps;
+        if (this.cancelled) {
+            throw new BudgetExceededException("search cancelled after "
+                    + this.steps + " steps");
+        }
+        else if (this.steps > this.maxSteps) {
+            throw new BudgetExceededException("search exceeded its budget of "
+                    + this.maxSteps + " steps");
+        }
+        else if (this.hasDeadline && --this.untilCheck == 0) {
+            this.untilCheck = CHECK_INTERVAL;
+            if (System.nanoTime() - this.deadline > 0) {
+                throw new BudgetExceededException("search passed its deadline after "
+                        + this.steps + " steps");
+            }
+        }
+    }
+}
@@ -0,0 +1,1489 @@
+package edu.washington.cs.knowitall.regex;
+
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.RandomAccess;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import edu.washington.cs.knowitall.regex.Expression.AssertionExpression;
+import edu.washington.cs.knowitall.regex.Expression.BaseExpression;
+import edu.washington.cs.knowitall.regex.Expression.EndAssertion;
+import edu.washington.cs.knowitall.regex.Expression.MatchingGroup;
+import edu.washington.cs.knowitall.regex.Expression.NamedGroup;
+import edu.washington.cs.knowitall.regex.Expression.NonMatchingGroup;
+import edu.washington.cs.knowitall.regex.Expression.StartAssertion;
+import edu.washington.cs.knowitall.regex.FiniteAutomaton.Automaton;
+import edu.washington.cs.knowitall.regex.FiniteAutomaton.CountedEpsilon;
+import edu.washington.cs.knowitall.regex.FiniteAutomaton.Counter;
+import edu.washington.cs.knowitall.regex.FiniteAutomaton.Edge;
+import edu.washington.cs.knowitall.regex.FiniteAutomaton.EndState;
+import edu.washington.cs.knowitall.regex.FiniteAutomaton.Epsilon;
+import edu.washington.cs.knowitall.regex.FiniteAutomaton.StartState;
+import edu.washington.cs.knowitall.regex.FiniteAutomaton.State;
+
+/**
+ * A compiled, array-backed form of an {@link Automaton}.  The states are
+ * numbered densely and the transitions, epsilon targets and edge
+ * expressions are kept in parallel primitive arrays indexed by state, so
+ * evaluation walks int arrays instead of the State and Edge object graph.
+ *
+ * The outgoing transitions of state {@code s} are stored at indices
+ * {@code edgeOffsets[s]} (inclusive) to {@code edgeOffsets[s + 1]}
+ * (exclusive) of {@code edgeTargets} and {@code edgeExpressions}, and
+ * likewise for the epsilon transitions.
+ *
+ * A compiled automaton is not modified after it is built, and each
+ * evaluation allocates its own working state, so it may be shared between
+ * threads.
+ *
+ * @param <E>
+ */
+public class CompiledAutomaton<E> {
+    /**
+     * A state that is neither a start nor an end state.
+     */
+    static final byte PLAIN = 0;
+
+    /**
+     * A state that was a {@link StartState}.
+     */
+    static final byte START = 1;
+
+    /**
+     * A state that was an {@link EndState}.
+     */
+    static final byte END = 2;
+
+    /**
+     * Marks the first step of a path, which has no incoming transition.
+     */
+    private static final int NO_EDGE = Integer.MIN_VALUE;
+
+    final int start;
+    final int end;
+
+    /**
+     * The pattern each state accepts, or -1.  There is one pattern unless
+     * the automaton matches a {@link RegularExpressionSet}, in which case
+     * there is no single end state and {@code end} is -1.
+     */
+    final int[] accepting;
+    final int patternCount;
+
+    final int[] epsilonOffsets;
+    final int[] epsilonTargets;
+
+    /**
+     * The repetition counters and, for each epsilon transition, the index
+     * of the counter that guards it (or -1) and what it does to the
+     * counter.
+     */
+    final Counter[] counters;
+    final int[] epsilonCounters;
+    final Counter.Action[] epsilonActions;
+
+    final int[] edgeOffsets;
+    final int[] edgeTargets;
+    final int[] edgeExpressions;
+
+    /**
+     * The distinct expressions on the edges, indexed by
+     * {@code edgeExpressions}.
+     */
+    final Expression<E>[] expressions;
+    final boolean[] assertions;
+
+    /**
+     * True iff some assertion other than {@code ^} and {@code $} is on an
+     * edge.  Such an assertion may look at every token after its position.
+     */
+    final boolean lookahead;
+
+    /**
+     * The kind of each state and, for start and end states, the
+     * expression it delimits.
+     */
+    final byte[] kinds;
+    final Expression<E>[] terminus;
+
+    /**
+     * The capturing groups, numbered so that a group comes after the
+     * groups that enclose it or can precede it in a match.  Group 0 is the
+     * whole match.  {@code stateGroups} holds the number of the group each
+     * start and end state delimits, or -1.
+     */
+    final Expression<E>[] groups;
+    final Map<Expression<E>, Integer> groupIds;
+    final int[] stateGroups;
+
+    /**
+     * The number of each named group, except names used more than once.
+     */
+    private final Map<String, Integer> groupNames;
+
+    /**
+     * True iff a capturing group can match more than once, such as inside
+     * a repetition.  Every match of such a group is reported, so the path
+     * is retraced instead of capturing the groups directly.
+     */
+    final boolean repeatedGroups;
+
+    /**
+     * The expressions that can consume the first token of a match: those
+     * on the edges out of the states reached from the start state by
+     * epsilon transitions and assertions.  A match cannot begin at a token
+     * none of them apply to.
+     */
+    final int[] firstExpressions;
+
+    /**
+     * The automaton without epsilon transitions that answers whether the
+     * tokens match, or null if there is none.
+     */
+    final GlushkovAutomaton<E> glushkov;
+
+    /**
+     * A bit-parallel run of the position automaton, or null if it has too
+     * many positions.
+     */
+    final ShiftAnd<E> shiftAnd;
+
+    /**
+     * A single-thread run that tracks the groups, or null if the
+     * automaton is not one-pass.
+     */
+    final OnePass<E> onePass;
+
+    private final int minMatchingLength;
+
+    public CompiledAutomaton(Automaton<E> auto) {
+        this(auto.start, Collections.<State<E>>singletonList(auto.end), auto.minMatchingLength());
+    }
+
+    /**
+     * Compile the states reachable from {@code start}.
+     * @param accepts the accepting states.  State {@code accepts.get(i)}
+     * accepts the {@code i}th pattern; a single accepting state is the end
+     * state.
+     * @param minMatchingLength the length of the shortest match.
+     */
+    CompiledAutomaton(State<E> start, List<State<E>> accepts, int minMatchingLength) {
+        // number the states reachable from the start state
+        Map<State<E>, Integer> ids = new IdentityHashMap<State<E>, Integer>();
+        List<State<E>> states = new ArrayList<State<E>>();
+        List<State<E>> stack = new ArrayList<State<E>>();
+        ids.put(start, 0);
+        states.add(start);
+        stack.add(start);
+        int edgeCount = 0;
+        int epsilonCount = 0;
+        while (!stack.isEmpty()) {
+            State<E> state = stack.remove(stack.size() - 1);
+            for (Edge<E> edge : state.edges) {
+                edgeCount++;
+                if (!ids.containsKey(edge.dest)) {
+                    ids.put(edge.dest, states.size());
+                    states.add(edge.dest);
+                    stack.add(edge.dest);
+                }
+            }
+            for (Epsilon<E> epsilon : state.epsilons) {
+                epsilonCount++;
+                if (!ids.containsKey(epsilon.dest)) {
+                    ids.put(epsilon.dest, states.size());
+                    states.add(epsilon.dest);
+                    stack.add(epsilon.dest);
+                }
+            }
+        }
+
+        int stateCount = states.size();
+        this.start = 0;
+        this.accepting = new int[stateCount];
+        Arrays.fill(this.accepting, -1);
+        for (int i = 0; i < accepts.size(); i++) {
+            Integer id = ids.get(accepts.get(i));
+            if (id != null) {
+                this.accepting[id] = i;
+            }
+        }
+        this.patternCount = accepts.size();
+        this.end = accepts.size() == 1 && ids.containsKey(accepts.get(0))
+            ? ids.get(accepts.get(0)) : -1;
+
+        this.kinds = new byte[stateCount];
+        this.terminus = CompiledAutomaton.expressionArray(stateCount);
+        this.epsilonOffsets = new int[stateCount + 1];
+        this.epsilonTargets = new int[epsilonCount];
+        this.epsilonCounters = new int[epsilonCount];
+        this.epsilonActions = new Counter.Action[epsilonCount];
+        this.edgeOffsets = new int[stateCount + 1];
+        this.edgeTargets = new int[edgeCount];
+        this.edgeExpressions = new int[edgeCount];
+
+        // number the distinct expressions on the edges
+        Map<Expression<E>, Integer> expressionIds =
+            new IdentityHashMap<Expression<E>, Integer>();
+        Map<Object, Integer> baseIds = new HashMap<Object, Integer>();
+        List<Expression<E>> expressions = new ArrayList<Expression<E>>();
+
+        // number the counters on the epsilon transitions
+        Map<Counter, Integer> counterIds = new IdentityHashMap<Counter, Integer>();
+        List<Counter> counters = new ArrayList<Counter>();
+
+        int edge = 0;
+        int epsilon = 0;
+        for (int i = 0; i < stateCount; i++) {
+            State<E> state = states.get(i);
+            if (state instanceof StartState<?>) {
+                this.kinds[i] = START;
+                this.terminus[i] = ((StartState<E>) state).expression;
+            }
+            else if (state instanceof EndState<?>) {
+                this.kinds[i] = END;
+                this.terminus[i] = ((EndState<E>) state).expression;
+            }
+
+            this.edgeOffsets[i] = edge;
+            for (Edge<E> e : state.edges) {
+                Integer id = expressionIds.get(e.expression);
+                if (id == null) {
+                    // base expressions that are the same predicate share an
+                    // id, see BaseExpression.key()
+                    Object key = null;
+                    if (e.expression instanceof BaseExpression<?>) {
+                        key = ((BaseExpression<E>) e.expression).key();
+                        id = baseIds.get(key);
+                    }
+
+                    if (id == null) {
+                        id = expressions.size();
+                        expressions.add(e.expression);
+                        if (key != null) {
+                            baseIds.put(key, id);
+                        }
+                    }
+
+                    expressionIds.put(e.expression, id);
+                }
+
+                this.edgeTargets[edge] = ids.get(e.dest);
+                this.edgeExpressions[edge] = id;
+                edge++;
+            }
+
+            this.epsilonOffsets[i] = epsilon;
+            for (Epsilon<E> e : state.epsilons) {
+                this.epsilonCounters[epsilon] = -1;
+                if (e instanceof CountedEpsilon<?>) {
+                    CountedEpsilon<E> counted = (CountedEpsilon<E>) e;
+                    Integer id = counterIds.get(counted.counter);
+                    if (id == null) {
+                        id = counters.size();
+                        counterIds.put(counted.counter, id);
+                        counters.add(counted.counter);
+                    }
+
+                    this.epsilonCounters[epsilon] = id;
+                    this.epsilonActions[epsilon] = counted.action;
+                }
+
+                this.epsilonTargets[epsilon++] = ids.get(e.dest);
+            }
+        }
+        this.edgeOffsets[stateCount] = edge;
+        this.epsilonOffsets[stateCount] = epsilon;
+
+        this.expressions = expressions.toArray(
+                CompiledAutomaton.<E>expressionArray(expressions.size()));
+        this.counters = counters.toArray(new Counter[counters.size()]);
+        this.assertions = new boolean[this.expressions.length];
+        boolean lookahead = false;
+        for (int i = 0; i < this.expressions.length; i++) {
+            this.assertions[i] = this.expressions[i] instanceof AssertionExpression<?>;
+            lookahead |= this.assertions[i] && !(this.expressions[i] instanceof StartAssertion<?>)
+                && !(this.expressions[i] instanceof EndAssertion<?>);
+        }
+        this.lookahead = lookahead;
+
+        this.minMatchingLength = minMatchingLength;
+        this.firstExpressions = this.firstExpressions();
+
+        // number the capturing groups
+        this.stateGroups = new int[stateCount];
+        Arrays.fill(this.stateGroups, -1);
+        Map<Expression<E>, Integer> groupIds = new IdentityHashMap<Expression<E>, Integer>();
+        List<Expression<E>> groups = new ArrayList<Expression<E>>();
+        boolean repeatedGroups = false;
+        int[] order = this.topologicalOrder();
+        boolean[] cyclic = this.cyclic(order);
+        for (int state : order) {
+            Expression<E> expression = this.terminus[state];
+            if (this.kinds[state] == START && expression instanceof MatchingGroup<?>
+                    && !(expression instanceof NonMatchingGroup<?>)) {
+                if (groupIds.containsKey(expression) || cyclic[state]) {
+                    repeatedGroups = true;
+                }
+                if (!groupIds.containsKey(expression)) {
+                    groupIds.put(expression, groups.size());
+                    groups.add(expression);
+                }
+            }
+        }
+
+        // index the groups with unique names
+        Map<String, Integer> groupNames = new HashMap<String, Integer>();
+        Set<String> duplicateNames = new HashSet<String>();
+        for (int i = 0; i < groups.size(); i++) {
+            if (groups.get(i) instanceof NamedGroup<?>) {
+                String name = ((NamedGroup<E>) groups.get(i)).name;
+                if (groupNames.put(name, i) != null) {
+                    duplicateNames.add(name);
+                }
+            }
+        }
+        groupNames.keySet().removeAll(duplicateNames);
+        for (int i = 0; i < stateCount; i++) {
+            Integer id = groupIds.get(this.terminus[i]);
+            if (id != null) {
+                this.stateGroups[i] = id;
+            }
+        }
+
+        this.groups = groups.toArray(CompiledAutomaton.<E>expressionArray(groups.size()));
+        this.groupIds = groupIds;
+        this.groupNames = Collections.unmodifiableMap(groupNames);
+        this.repeatedGroups = repeatedGroups;
+
+        this.glushkov = GlushkovAutomaton.build(this);
+        this.shiftAnd = this.glushkov == null ? null : ShiftAnd.build(this.glushkov);
+        this.onePass = OnePass.build(this);
+    }
+
+    /**
+     * @return a new array of {@code length} expressions.  Arrays of a
+     * generic type cannot be created directly.
+     */
+    @SuppressWarnings("unchecked")
+    private static <E> Expression<E>[] expressionArray(int length) {
+        return (Expression<E>[]) new Expression<?>[length];
+    }
+
+    /**
+     * Copy {@code auto} with a different bit-parallel run, which must
+     * behave the same.
+     */
+    CompiledAutomaton(CompiledAutomaton<E> auto, ShiftAnd<E> shiftAnd) {
+        this.start = auto.start;
+        this.end = auto.end;
+        this.accepting = auto.accepting;
+        this.patternCount = auto.patternCount;
+        this.epsilonOffsets = auto.epsilonOffsets;
+        this.epsilonTargets = auto.epsilonTargets;
+        this.counters = auto.counters;
+        this.epsilonCounters = auto.epsilonCounters;
+        this.epsilonActions = auto.epsilonActions;
+        this.edgeOffsets = auto.edgeOffsets;
+        this.edgeTargets = auto.edgeTargets;
+        this.edgeExpressions = auto.edgeExpressions;
+        this.expressions = auto.expressions;
+        this.assertions = auto.assertions;
+        this.lookahead = auto.lookahead;
+        this.kinds = auto.kinds;
+        this.terminus = auto.terminus;
+        this.groups = auto.groups;
+        this.groupIds = auto.groupIds;
+        this.stateGroups = auto.stateGroups;
+        this.groupNames = auto.groupNames;
+        this.repeatedGroups = auto.repeatedGroups;
+        this.firstExpressions = auto.firstExpressions;
+        this.minMatchingLength = auto.minMatchingLength;
+        this.glushkov = auto.glushkov;
+        this.shiftAnd = shiftAnd;
+        this.onePass = auto.onePass;
+    }
+
+    /**
+     * @return the expressions on the edges out of the states reached from
+     * the start state without consuming a token, taking every assertion
+     * and counter to allow its transition.
+     */
+    private int[] firstExpressions() {
+        boolean[] visited = new boolean[this.stateCount()];
+        boolean[] first = new boolean[this.expressions.length];
+        int[] stack = new int[this.stateCount()];
+        int depth = 0;
+        visited[this.start] = true;
+        stack[depth++] = this.start;
+        while (depth > 0) {
+            int state = stack[--depth];
+            for (int e = this.epsilonOffsets[state]; e < this.epsilonOffsets[state + 1]; e++) {
+                int dest = this.epsilonTargets[e];
+                if (!visited[dest]) {
+                    visited[dest] = true;
+                    stack[depth++] = dest;
+                }
+            }
+            for (int e = this.edgeOffsets[state]; e < this.edgeOffsets[state + 1]; e++) {
+                int expression = this.edgeExpressions[e];
+                int dest = this.edgeTargets[e];
+                if (!this.assertions[expression]) {
+                    first[expression] = true;
+                }
+                else if (!visited[dest]) {
+                    visited[dest] = true;
+                    stack[depth++] = dest;
+                }
+            }
+        }
+
+        int count = 0;
+        for (boolean b : first) {
+            if (b) {
+                count++;
+            }
+        }
+        int[] expressions = new int[count];
+        for (int i = 0, j = 0; i < first.length; i++) {
+            if (first[i]) {
+                expressions[j++] = i;
+            }
+        }
+
+        return expressions;
+    }
+
+    /**
+     * @return true iff some expression that can consume the first token of
+     * a match applies to {@code token}.  The results are kept in the memo,
+     * so they are not computed again for the step over {@code token}.
+     */
+    boolean canStart(E token, Memo memo) {
+        for (int expression : this.firstExpressions) {
+            if (memo.apply(expression, token)) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * @return the tokens, copied into a list with constant time access by
+     * index if they are not in one already.  Evaluation reads the tokens
+     * by index, which is linear in lists like {@link java.util.LinkedList}.
+     */
+    static <E> List<E> randomAccess(List<E> tokens) {
+        return tokens instanceof RandomAccess ? tokens : new ArrayList<E>(tokens);
+    }
+
+    /**
+     * @return a copy of the tokens of the match from {@code startIndex} to
+     * {@code endIndex}, indexed as in {@code tokens}, so the match does
+     * not change if the caller modifies or reuses its list.  The copy also
+     * holds what is needed to check the assertions again when the match is
+     * retraced: the token after the match, if any, which tells whether the
+     * match ends the tokens, or every token after the match if an
+     * assertion may look at them.
+     */
+    List<E> snapshot(List<E> tokens, int startIndex, int endIndex) {
+        int end = this.lookahead ? tokens.size() : Math.min(endIndex + 1, tokens.size());
+        return new OffsetList<E>(startIndex, new ArrayList<E>(tokens.subList(startIndex, end)));
+    }
+
+    /**
+     * @return the states in reverse postorder of a depth-first walk from
+     * the start state, so a state that is not on a cycle comes before
+     * every state it reaches.  Of states that do not reach one another,
+     * those reached by later transitions come first, which puts the left
+     * alternative of a parsed {@code |} (the second operand of the
+     * {@code Or}) first.
+     */
+    private int[] topologicalOrder() {
+        int stateCount = this.stateCount();
+        int[] order = new int[stateCount];
+        int size = stateCount;
+
+        // each entry is a state and the number of its transitions not yet
+        // walked
+        boolean[] visited = new boolean[stateCount];
+        int[] states = new int[stateCount];
+        int[] remaining = new int[stateCount];
+        int depth = 0;
+        visited[this.start] = true;
+        states[depth] = this.start;
+        remaining[depth++] = this.transitionCount(this.start);
+        while (depth > 0) {
+            int state = states[depth - 1];
+            if (remaining[depth - 1] == 0) {
+                order[--size] = state;
+                depth--;
+                continue;
+            }
+
+            int transition = this.transitionCount(state) - remaining[depth - 1]--;
+            int edges = this.edgeOffsets[state + 1] - this.edgeOffsets[state];
+            int dest = transition < edges
+                ? this.edgeTargets[this.edgeOffsets[state] + transition]
+                : this.epsilonTargets[this.epsilonOffsets[state] + transition - edges];
+            if (!visited[dest]) {
+                visited[dest] = true;
+                states[depth] = dest;
+                remaining[depth++] = this.transitionCount(dest);
+            }
+        }
+
+        return order;
+    }
+
+    private int transitionCount(int state) {
+        return this.edgeOffsets[state + 1] - this.edgeOffsets[state]
+            + this.epsilonOffsets[state + 1] - this.epsilonOffsets[state];
+    }
+
+    /**
+     * Find the strongly connected components by walking the reversed
+     * transitions from each state in {@code order}, which must be the
+     * reverse postorder of {@link #topologicalOrder()}.
+     * @return for each state, true iff it can be reached from itself.
+     */
+    private boolean[] cyclic(int[] order) {
+        int stateCount = this.stateCount();
+
+        // the reversed transitions, indexed like the forward ones
+        int[] sourceOffsets = new int[stateCount + 1];
+        boolean[] cyclic = new boolean[stateCount];
+        for (int state = 0; state < stateCount; state++) {
+            for (int i = this.edgeOffsets[state]; i < this.edgeOffsets[state + 1]; i++) {
+                sourceOffsets[this.edgeTargets[i] + 1]++;
+                cyclic[state] |= this.edgeTargets[i] == state;
+            }
+            for (int i = this.epsilonOffsets[state]; i < this.epsilonOffsets[state + 1]; i++) {
+                sourceOffsets[this.epsilonTargets[i] + 1]++;
+                cyclic[state] |= this.epsilonTargets[i] == state;
+            }
+        }
+        for (int state = 0; state < stateCount; state++) {
+            sourceOffsets[state + 1] += sourceOffsets[state];
+        }
+        int[] sources = new int[sourceOffsets[stateCount]];
+        int[] filled = Arrays.copyOf(sourceOffsets, stateCount);
+        for (int state = 0; state < stateCount; state++) {
+            for (int i = this.edgeOffsets[state]; i < this.edgeOffsets[state + 1]; i++) {
+                sources[filled[this.edgeTargets[i]]++] = state;
+            }
+            for (int i = this.epsilonOffsets[state]; i < this.epsilonOffsets[state + 1]; i++) {
+                sources[filled[this.epsilonTargets[i]]++] = state;
+            }
+        }
+
+        int[] components = new int[stateCount];
+        Arrays.fill(components, -1);
+        int[] stack = new int[stateCount];
+        int[] members = new int[stateCount];
+        for (int root : order) {
+            if (components[root] >= 0) {
+                continue;
+            }
+
+            // collect the component of root
+            int size = 0;
+            int depth = 0;
+            components[root] = root;
+            stack[depth++] = root;
+            while (depth > 0) {
+                int state = stack[--depth];
+                members[size++] = state;
+                for (int i = sourceOffsets[state]; i < sourceOffsets[state + 1]; i++) {
+                    if (components[sources[i]] < 0) {
+                        components[sources[i]] = root;
+                        stack[depth++] = sources[i];
+                    }
+                }
+            }
+
+            if (size > 1) {
+                for (int i = 0; i < size; i++) {
+                    cyclic[members[i]] = true;
+                }
+            }
+        }
+
+        return cyclic;
+    }
+
+    /**
+     * @return the number of states in the automaton.
+     */
+    public int stateCount() {
+        return this.kinds.length;
+    }
+
+    public int minMatchingLength() {
+        return this.minMatchingLength;
+    }
+
+    /**
+     * @return the number of capturing groups, including group 0 for the
+     * whole match.
+     */
+    public int groupCount() {
+        return this.groups.length;
+    }
+
+    /**
+     * @return the number of each named group, see
+     * {@link Match#group(int)}.  Names used by more than one group are
+     * left out.
+     */
+    public Map<String, Integer> groupIndex() {
+        return this.groupNames;
+    }
+
+    /**
+     * @return true iff a match begins at the first token.
+     */
+    public boolean apply(List<E> tokens) {
+        tokens = CompiledAutomaton.randomAccess(tokens);
+        return tokens.size() - this.minMatchingLength() >= 0
+            && this.simulate(tokens, 0, 0, false, null);
+    }
+
+    /**
+     * @return true iff a match begins at or after {@code startIndex}.
+     */
+    public boolean contains(List<E> tokens, int startIndex) {
+        tokens = CompiledAutomaton.randomAccess(tokens);
+        return this.simulate(tokens, startIndex, tokens.size() - this.minMatchingLength(),
+                             false, null);
+    }
+
+    /**
+     * Find the patterns with a match in the tokens, in a single pass.
+     * @return the set of patterns found.
+     */
+    BitSet accepted(List<E> tokens) {
+        tokens = CompiledAutomaton.randomAccess(tokens);
+        BitSet found = new BitSet(this.patternCount);
+        if (this.patternCount > 0) {
+            this.simulate(tokens, 0, tokens.size() - this.minMatchingLength(), false, found);
+        }
+
+        return found;
+    }
+
+    /**
+     * @return true iff a match spans all of the tokens.
+     */
+    public boolean matches(List<E> tokens) {
+        tokens = CompiledAutomaton.randomAccess(tokens);
+        return tokens.size() - this.minMatchingLength() >= 0
+            && this.simulate(tokens, 0, 0, true, null);
+    }
+
+    /**
+     * Run the NFA over the tokens without tracking paths or groups, only
+     * the set of configurations reached, and stop as soon as the answer
+     * is known.  Nothing is allocated per token.  The position automaton
+     * is run instead if there is one, since it follows no epsilons, and
+     * bit-parallel if it is small enough.
+     * @param lastStart the last index where a match may begin.
+     * @param whole true iff the match must end at the last token.
+     * @param found if not null, the patterns found are added to it and the
+     * simulation only stops early once every pattern is found.
+     * @return true iff a match begins between {@code startIndex} and
+     * {@code lastStart}.
+     */
+    private boolean simulate(List<E> tokens, int startIndex, int lastStart, boolean whole,
+                             BitSet found) {
+        if (this.shiftAnd != null && found == null) {
+            return this.shiftAnd.simulate(tokens, startIndex, lastStart, whole);
+        }
+        else if (this.glushkov != null) {
+            return this.glushkov.simulate(tokens, startIndex, lastStart, whole, found);
+        }
+
+        int size = tokens.size();
+        if (startIndex > lastStart) {
+            return false;
+        }
+
+        Evaluation evaluation = new Evaluation();
+        Configurations configurations = evaluation.configurations;
+        SparseSet active = evaluation.active;
+        SparseSet next = new SparseSet(this.stateCount());
+        for (int index = startIndex; ; index++) {
+            evaluation.memo.next();
+
+            // the configurations so far have consumed a token
+            if (this.close(active, 0, configurations, index, tokens, found)
+                    && (!whole || index == size)
+                    && (found == null || found.cardinality() == this.patternCount)) {
+                return true;
+            }
+
+            // start a new path
+            if (index <= lastStart && index < size
+                    && this.canStart(tokens.get(index), evaluation.memo)) {
+                int from = active.size();
+                if (active.add(configurations.start())) {
+                    this.close(active, from, configurations, index, tokens, null);
+                }
+            }
+
+            if (index == size) {
+                return false;
+            }
+
+            E token = tokens.get(index);
+            next.clear();
+            for (int i = 0; i < active.size(); i++) {
+                int configuration = active.get(i);
+                int state = configurations.state(configuration);
+                for (int e = this.edgeOffsets[state]; e < this.edgeOffsets[state + 1]; e++) {
+                    int expression = this.edgeExpressions[e];
+                    if (!this.assertions[expression]) {
+                        int dest = configurations.edge(configuration, e);
+                        if (!next.contains(dest) && evaluation.memo.apply(expression, token)) {
+                            next.add(dest);
+                        }
+                    }
+                }
+            }
+
+            SparseSet swap = active;
+            active = next;
+            next = swap;
+
+            if (active.isEmpty() && index + 1 > lastStart) {
+                return false;
+            }
+        }
+    }
+
+    /**
+     * Add the configurations reachable from those in {@code active} from
+     * index {@code from} on by epsilon transitions and assertions that
+     * hold at {@code position}.
+     * @param found if not null, the patterns accepted are added to it.
+     * @return true iff an accepting state was reached.
+     */
+    private boolean close(SparseSet active, int from, Configurations configurations,
+                          int position, List<E> tokens, BitSet found) {
+        boolean end = false;
+        for (int i = from; i < active.size(); i++) {
+            int configuration = active.get(i);
+            int state = configurations.state(configuration);
+            if (this.accepting[state] >= 0) {
+                end = true;
+                if (found != null) {
+                    found.set(this.accepting[state]);
+                }
+            }
+
+            for (int e = this.epsilonOffsets[state]; e < this.epsilonOffsets[state + 1]; e++) {
+                int dest = configurations.epsilon(configuration, e);
+                if (dest >= 0) {
+                    active.add(dest);
+                }
+            }
+
+            for (int e = this.edgeOffsets[state]; e < this.edgeOffsets[state + 1]; e++) {
+                int expression = this.edgeExpressions[e];
+                if (this.assertions[expression] && this.holds(expression, position, tokens)) {
+                    active.add(configurations.edge(configuration, e));
+                }
+            }
+        }
+
+        return end;
+    }
+
+    /**
+     * @return true iff the assertion {@code expression} holds at
+     * {@code position}.  Assertions only depend on the position, since
+     * the start token is at position 0.
+     */
+    @SuppressWarnings("unchecked")
+    boolean holds(int expression, int position, List<E> tokens) {
+        Expression<E> assertion = this.expressions[expression];
+        if (assertion instanceof StartAssertion<?>) {
+            return position == 0;
+        }
+        else if (assertion instanceof EndAssertion<?>) {
+            return position == tokens.size();
+        }
+        else {
+            return ((AssertionExpression<E>) assertion).apply(position == 0,
+                    tokens.subList(position, tokens.size()), tokens.size() - position);
+        }
+    }
+
+    public Match.FinalMatch<E> lookingAt(List<E> tokens) {
+        return lookingAt(tokens, 0);
+    }
+
+    /**
+     * @return null if no match, otherwise a representation of the match
+     */
+    public Match.FinalMatch<E> lookingAt(List<E> tokens, int startIndex) {
+        tokens = CompiledAutomaton.randomAccess(tokens);
+        return lookingAt(tokens, startIndex, tokens.size());
+    }
+
+    /**
+     * Find the match that begins at {@code startIndex}, reading no tokens
+     * past {@code endIndex}.  This is used when the end of the longest
+     * match is already known.
+     * @return null if no match, otherwise a representation of the match
+     */
+    Match.FinalMatch<E> lookingAt(List<E> tokens, int startIndex, int endIndex) {
+        return this.lookingAt(tokens, startIndex, endIndex, null);
+    }
+
+    /**
+     * Find the match that begins at {@code startIndex}, reading no tokens
+     * past {@code endIndex}, as {@link #lookingAt(List, int, int)} does.
+     * @param budget if not null, the budget charged for the steps of the
+     * NFA.  The one-pass run is skipped, so the steps charged do not
+     * depend on whether the expression has one.
+     * @return null if no match, otherwise a representation of the match
+     */
+    Match.FinalMatch<E> lookingAt(List<E> tokens, int startIndex, int endIndex,
+            Budget budget) {
+        if (tokens.size() - startIndex - this.minMatchingLength() < 0) {
+            // don't try if we can't possible match
+            return null;
+        }
+        else if (!this.repeatedGroups) {
+            if (this.onePass != null && budget == null) {
+                int[] slots = this.onePass.lookingAt(tokens, startIndex, endIndex);
+                if (slots != OnePass.UNDECIDED) {
+                    return slots == null ? null : PikeVm.buildMatch(this, tokens, slots);
+                }
+            }
+
+            return new PikeVm<E>(this, budget).lookingAt(tokens, startIndex, endIndex);
+        }
+        else {
+            Step path = this.evaluate(tokens, startIndex, endIndex, budget);
+            if (path == null) {
+                return null;
+            }
+
+            int matchEnd = startIndex + this.consumed(path);
+            return this.finalMatch(this.buildMatch(this.snapshot(tokens, startIndex, matchEnd),
+                        startIndex, path));
+        }
+    }
+
+    /**
+     * Retrace the match from {@code startIndex} to {@code endIndex}.
+     * @return the pairs of the match.
+     */
+    List<Match.Group<E>> pairs(List<E> tokens, int startIndex, int endIndex) {
+        Step path = this.evaluate(tokens, startIndex, endIndex, null);
+        return this.buildMatch(tokens, startIndex, path).pairs();
+    }
+
+    /**
+     * Find the first match that begins at or after {@code startIndex} in a
+     * single left-to-right pass.  A new candidate is started at each index
+     * where a match could fit, and candidates are kept in order of the
+     * index they started at so earlier starts take precedence.  The result is
+     * the leftmost match, and of the matches that begin there the one
+     * {@link #lookingAt(List, int)} returns.
+     * @return null if no match, otherwise a representation of the match
+     */
+    public Match.FinalMatch<E> find(List<E> tokens, int startIndex) {
+        tokens = CompiledAutomaton.randomAccess(tokens);
+        return this.find(tokens, startIndex, tokens.size());
+    }
+
+    /**
+     * Find the first match that begins between {@code startIndex} and
+     * {@code lastStart}, see {@link #find(List, int)}.
+     * @return null if no match, otherwise a representation of the match
+     */
+    Match.FinalMatch<E> find(List<E> tokens, int startIndex, int lastStart) {
+        return this.find(tokens, startIndex, lastStart, null);
+    }
+
+    /**
+     * Find the first match that begins between {@code startIndex} and
+     * {@code lastStart}, see {@link #find(List, int)}.
+     * @param budget if not null, the budget charged for the steps of the
+     * NFA.  The bit-parallel and one-pass runs are skipped, so the steps
+     * charged do not depend on whether the expression has them.
+     * @return null if no match, otherwise a representation of the match
+     */
+    Match.FinalMatch<E> find(List<E> tokens, int startIndex, int lastStart, Budget budget) {
+        int totalTokens = tokens.size();
+        lastStart = Math.min(lastStart, totalTokens - this.minMatchingLength());
+        if (startIndex > lastStart) {
+            return null;
+        }
+
+        if (this.shiftAnd != null && budget == null) {
+            // the leftmost match begins before the first match ends
+            int end = this.shiftAnd.firstEnd(tokens, startIndex, lastStart);
+            if (end < 0) {
+                return null;
+            }
+            lastStart = Math.min(lastStart, end - 1);
+        }
+
+        if (!this.repeatedGroups) {
+            if (this.onePass != null && budget == null) {
+                int[] slots = this.onePass.find(tokens, startIndex, lastStart);
+                if (slots != OnePass.UNDECIDED) {
+                    return slots == null ? null : PikeVm.buildMatch(this, tokens, slots);
+                }
+            }
+
+            return new PikeVm<E>(this, budget).find(tokens, startIndex, lastStart);
+        }
+
+        Evaluation evaluation = new Evaluation();
+        List<Candidate> candidates = new ArrayList<Candidate>();
+
+        int solutionStart = -1;
+        int solutionEnd = -1;
+        Step solution = null;
+        for (int index = startIndex; ; index++) {
+            evaluation.memo.next();
+
+            for (int k = 0; k < candidates.size(); k++) {
+                Candidate candidate = candidates.get(k);
+                expand(candidate.steps, evaluation, tokens, index);
+
+                // can't succeed if no tokens are consumed
+                Step end = index > candidate.start
+                    ? this.findEnd(candidate.steps, evaluation) : null;
+                if (end != null) {
+                    if (solution == null || candidate.start < solutionStart
+                            || candidate.start == solutionStart && index > solutionEnd) {
+                        solution = end;
+                        solutionStart = candidate.start;
+                        solutionEnd = index;
+                    }
+
+                    // later candidates can only begin later matches
+                    candidates.subList(k + 1, candidates.size()).clear();
+                }
+            }
+
+            // start a new candidate if it could begin a better match
+            int start = evaluation.configurations.start();
+            if (solution == null && index <= lastStart && index < totalTokens
+                    && this.canStart(tokens.get(index), evaluation.memo)
+                    && evaluation.active.add(start)) {
+                Candidate candidate = new Candidate(index, new ArrayList<Step>());
+                candidate.steps.add(new Step(start));
+                expand(candidate.steps, evaluation, tokens, index);
+                candidates.add(candidate);
+            }
+
+            evaluation.active.clear();
+            if (index == totalTokens) {
+                break;
+            }
+
+            if (budget != null) {
+                int steps = 1;
+                for (Candidate candidate : candidates) {
+                    steps += candidate.steps.size();
+                }
+                budget.charge(steps);
+            }
+
+            E token = tokens.get(index);
+            int live = 0;
+            for (Candidate candidate : candidates) {
+                List<Step> steps = this.step(candidate.steps, token, evaluation);
+                if (!steps.isEmpty()) {
+                    candidates.set(live++, new Candidate(candidate.start, steps));
+                }
+            }
+            candidates.subList(live, candidates.size()).clear();
+
+            if (candidates.isEmpty() && (solution != null || index + 1 > lastStart)) {
+                break;
+            }
+        }
+
+        if (solution == null) {
+            return null;
+        }
+
+        return this.finalMatch(this.buildMatch(this.snapshot(tokens, solutionStart, solutionEnd),
+                    solutionStart, solution));
+    }
+
+    /**
+     * @return an immutable copy of {@code match} with its groups indexed.
+     * A group that matched more than once is indexed by its first match.
+     */
+    private Match.FinalMatch<E> finalMatch(Match.IntermediateMatch<E> match) {
+        List<Match.Group<E>> groups = match.groups();
+        List<Match.Group<E>> indexed =
+            new ArrayList<Match.Group<E>>(Collections.<Match.Group<E>>nCopies(this.groups.length, null));
+        for (Match.Group<E> group : groups) {
+            int id = this.groupIds.get(group.expr);
+            if (indexed.get(id) == null) {
+                indexed.set(id, group);
+            }
+        }
+
+        return new Match.FinalMatch<E>(match, groups, indexed, this.groupNames);
+    }
+
+    /**
+     * @return the number of tokens consumed on the path that ends with
+     * {@code path}.
+     */
+    private int consumed(Step path) {
+        int count = 0;
+        for (Step step = path; step.prev != null; step = step.prev) {
+            if (this.consumes(step.edge)) {
+                count++;
+            }
+        }
+
+        return count;
+    }
+
+    /**
+     * Retrace the path that ends with {@code path} and build the match.
+     * @param tokens the tokens searched.
+     * @param startIndex the index where the match begins.
+     */
+    private Match.IntermediateMatch<E> buildMatch(List<E> tokens, int startIndex, Step path) {
+        // build list of edges
+        int length = 0;
+        for (Step step = path; step.prev != null; step = step.prev) {
+            length++;
+        }
+        int[] edges = new int[length];
+        for (Step step = path; step.prev != null; step = step.prev) {
+            edges[--length] = step.edge;
+        }
+
+        Match.IntermediateMatch<E> match = new Match.IntermediateMatch<E>();
+        buildMatch(tokens, null, new AtomicInteger(startIndex), this.start,
+                   new EdgeIterator(edges), match);
+        return match;
+    }
+
+    /**
+     * @return the destination of the transition encoded by {@code edge}.
+     */
+    private int dest(int edge) {
+        if (edge >= 0) {
+            return this.edgeTargets[edge];
+        }
+        else {
+            return this.epsilonTargets[-edge - 1];
+        }
+    }
+
+    /**
+     * @return true iff {@code edge} encodes a transition that consumes a
+     * token.
+     */
+    private boolean consumes(int edge) {
+        return edge >= 0 && !this.assertions[this.edgeExpressions[edge]];
+    }
+
+    /**
+     * Retrace the path through the NFA and produce an object that
+     * represents the match.
+     * @param tokens the tokens searched.
+     * @param expression the expression to match.
+     * @param index the present index.
+     * @param state the present state.
+     * @param edgeIterator an iterator over the edges in the solution.
+     * @param match the solution.
+     * @return
+     */
+    private int buildMatch(List<E> tokens, Expression<E> expression,
+            AtomicInteger index, int state, EdgeIterator edgeIterator,
+            Match.IntermediateMatch<E> match) {
+
+        Match.IntermediateMatch<E> newMatch = new Match.IntermediateMatch<E>();
+
+        while (edgeIterator.hasNext() && !(this.kinds[state] == END
+               && this.terminus[state] == expression)) {
+
+            int edge = edgeIterator.next();
+
+            // run the sub-automaton
+            if (this.consumes(edge)) {
+                // consume a token, this is the base case
+                int position = index.getAndIncrement();
+                newMatch.add(new Match.Group<E>(this.expressions[this.edgeExpressions[edge]],
+                            tokens, position, position + 1));
+
+                state = this.dest(edge);
+            }
+            else if (this.kinds[state] == START) {
+                // recurse on StartState so we have a group for that match
+                Expression<E> expr = this.terminus[state];
+                state = buildMatch(tokens, expr, index, this.dest(edge), edgeIterator, newMatch);
+                assert(this.kinds[state] == END && this.terminus[state] == expr);
+            }
+            else {
+                assert(edge < 0);
+                state = this.dest(edge);
+            }
+        }
+
+        // add the sub match group
+        if (expression != null
+            && (!newMatch.isEmpty() || expression instanceof MatchingGroup<?>)) {
+            // create a wrapper for the expressions it matched
+            Match.Group<E> pair = new Match.Group<E>(expression);
+            for (Match.Group<E> p : newMatch.pairs()) {
+                if (p.expr instanceof Expression.BaseExpression<?>) {
+                    pair.addTokens(p);
+                }
+            }
+
+            // add it
+            match.add(pair);
+        }
+
+        // add the contents of the sub match group
+        match.addAll(newMatch.pairs());
+
+        return state;
+    }
+
+    /**
+     * A list of tokens that begins at {@code offset}, indexed by position
+     * in a longer sequence.  The tokens before the offset are not present.
+     * This is how a match keeps a copy of its tokens, and how a
+     * {@link StreamingMatcher} indexes the tokens it still holds.
+     */
+    static class OffsetList<E> extends AbstractList<E> implements RandomAccess {
+        private final int offset;
+        private final List<E> tokens;
+
+        public OffsetList(int offset, List<E> tokens) {
+            this.offset = offset;
+            this.tokens = tokens;
+        }
+
+        @Override
+        public E get(int index) {
+            if (index < this.offset) {
+                throw new IndexOutOfBoundsException("token " + index + " is not present");
+            }
+
+            return this.tokens.get(index - this.offset);
+        }
+
+        @Override
+        public int size() {
+            return this.offset + this.tokens.size();
+        }
+    }
+
+    /**
+     * An iterator over the encoded edges of a solution path.
+     */
+    private static class EdgeIterator {
+        private final int[] edges;
+        private int index;
+
+        public EdgeIterator(int[] edges) {
+            this.edges = edges;
+        }
+
+        public boolean hasNext() {
+            return this.index < this.edges.length;
+        }
+
+        public int next() {
+            return this.edges[this.index++];
+        }
+    }
+
+    /**
+     * A representation of a movement from a state to another, with a
+     * backreference to the previous state.  This is used in building
+     * a match object once a solution has been found.
+     *
+     * Edges are encoded as an index into {@code edgeTargets} when they
+     * are non-negative and as {@code -(i + 1)} for the epsilon transition
+     * at index {@code i} of {@code epsilonTargets}.  Steps are at a
+     * configuration, see {@link Configurations}.
+     */
+    private static class Step {
+        public final int configuration;
+        public final Step prev;
+        public final int edge;
+
+        public Step(int configuration) {
+            this(configuration, null, NO_EDGE);
+        }
+
+        public Step(int configuration, Step prev, int edge) {
+            this.configuration = configuration;
+            this.prev = prev;
+            this.edge = edge;
+        }
+
+        public String toString() {
+            return String.valueOf(this.configuration);
+        }
+    }
+
+    /**
+     * The working state of a single evaluation.
+     */
+    class Evaluation {
+        public final Configurations configurations = new Configurations(CompiledAutomaton.this);
+
+        /**
+         * The configurations reached at the present position.
+         */
+        public final SparseSet active = new SparseSet(stateCount());
+
+        public final Memo memo = new Memo();
+    }
+
+    /**
+     * The results of the expressions on the token at the present position.
+     * Several states can have edges with the same expression, such as the
+     * repetitions of a {@code MinMax}, and several paths can be at the
+     * same position in an unanchored search, so each expression is applied
+     * at most once per position.
+     */
+    class Memo {
+        /**
+         * The position each result was computed at, or 0 if it was never
+         * computed.
+         */
+        private final int[] positions = new int[expressions.length];
+        private final boolean[] results = new boolean[expressions.length];
+        private int position = 0;
+
+        /**
+         * Move to the next position, discarding the results.
+         */
+        public void next() {
+            this.position++;
+        }
+
+        public boolean apply(int expression, E token) {
+            if (this.positions[expression] != this.position) {
+                this.positions[expression] = this.position;
+                this.results[expression] = expressions[expression].apply(token);
+            }
+
+            return this.results[expression];
+        }
+    }
+
+    /**
+     * The steps of the paths that started at the same index, used by the
+     * unanchored search.
+     */
+    private static class Candidate {
+        public final int start;
+        public final List<Step> steps;
+
+        public Candidate(int start, List<Step> steps) {
+            this.start = start;
+            this.steps = steps;
+        }
+    }
+
+    /**
+     * Expand all epsilon transitions for the supplied steps.  That is,
+     * add all states available via an epsilon transition from a supplied
+     * state to the list.
+     * @param steps
+     * @param evaluation
+     */
+    private void expandEpsilons(List<Step> steps, Evaluation evaluation) {
+        int size = steps.size();
+        for (int i = 0; i < size; i++) {
+            Step step = steps.get(i);
+
+            expandEpsilon(step, steps, evaluation);
+        }
+    }
+
+    /**
+     * Expand all epsilon transitions for the specified step.  That is,
+     * add all states avaiable via an epsilon transition from step.state.
+     * @param step
+     * @param steps
+     * @param evaluation
+     */
+    private void expandEpsilon(Step step, List<Step> steps, Evaluation evaluation) {
+        int state = evaluation.configurations.state(step.configuration);
+
+        // loop over edges
+        for (int i = this.epsilonOffsets[state]; i < this.epsilonOffsets[state + 1]; i++) {
+            int dest = evaluation.configurations.epsilon(step.configuration, i);
+
+            // try free edges if they do not lead to an existing
+            // step, and their counter allows them
+            if (dest >= 0 && evaluation.active.add(dest)) {
+                Step newstep = new Step(dest, step, -i - 1);
+                steps.add(newstep);
+                expandEpsilon(newstep, steps, evaluation);
+            }
+        }
+    }
+
+    /**
+     * Expand any state that has an assertion edge if the assertion passes
+     * given the present state.
+     * @param steps
+     * @param newsteps
+     * @param tokens
+     * @param position the present position in the tokens.
+     * @param evaluation
+     */
+    private void expandAssertions(List<Step> steps, List<Step> newsteps,
+                                  List<E> tokens, int position, Evaluation evaluation) {
+        for (Step step : steps) {
+            int state = evaluation.configurations.state(step.configuration);
+            for (int i = this.edgeOffsets[state]; i < this.edgeOffsets[state + 1]; i++) {
+                int expression = this.edgeExpressions[i];
+                if (this.assertions[expression] && this.holds(expression, position, tokens)) {
+                    int dest = evaluation.configurations.edge(step.configuration, i);
+                    if (evaluation.active.add(dest)) {
+                        newsteps.add(new Step(dest, step, i));
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Expand the steps at the present position through epsilon transitions
+     * and the assertions that hold, appending the new steps to
+     * {@code steps}.
+     * @param steps present list of accessible states.
+     * @param evaluation
+     * @param tokens
+     * @param position the present position in the tokens.
+     */
+    private void expand(List<Step> steps, Evaluation evaluation, List<E> tokens, int position) {
+        expandEpsilons(steps, evaluation);
+
+        List<Step> intermediate = new ArrayList<Step>(steps);
+        List<Step> newsteps = new ArrayList<Step>(steps.size() * 2);
+        do {
+            // handle assertions
+            newsteps.clear();
+            expandAssertions(intermediate, newsteps, tokens, position, evaluation);
+            expandEpsilons(newsteps, evaluation);
+
+            intermediate.clear();
+            intermediate.addAll(newsteps);
+
+            steps.addAll(newsteps);
+        } while (newsteps.size() > 0);
+    }
+
+    /**
+     * @return the step at the end state, or null if there is none.
+     */
+    private Step findEnd(List<Step> steps, Evaluation evaluation) {
+        for (Step step : steps) {
+            if (evaluation.configurations.state(step.configuration) == this.end) {
+                return step;
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * Take the transitions out of {@code steps} that match {@code token}.
+     * @param evaluation whose active configurations are those at the next
+     * position and whose memo holds the results on {@code token}.
+     * @return the steps at the next position.
+     */
+    private List<Step> step(List<Step> steps, E token, Evaluation evaluation) {
+        List<Step> newsteps = new ArrayList<Step>(steps.size());
+        for (Step step : steps) {
+            int state = evaluation.configurations.state(step.configuration);
+            for (int i = this.edgeOffsets[state]; i < this.edgeOffsets[state + 1]; i++) {
+                // try other edges if they match the current token
+                int expression = this.edgeExpressions[i];
+                if (!this.assertions[expression]) {
+                    int dest = evaluation.configurations.edge(step.configuration, i);
+                    if (!evaluation.active.contains(dest)
+                            && evaluation.memo.apply(expression, token)) {
+                        evaluation.active.add(dest);
+                        newsteps.add(new Step(dest, step, i));
+                    }
+                }
+            }
+        }
+
+        return newsteps;
+    }
+
+    /**
+     * Evaluate the NFA against the list of tokens using the Thompson NFA
+     * algorithm.  The configurations reached at each position are tracked
+     * in a sparse set so each is visited at most once per position; the
+     * first path to reach a configuration takes precedence.
+     * @param tokens the tokens to evaluate against
+     * @param startIndex the index of the first token to consume.
+     * @param endIndex the index past the last token to consume.
+     * @param budget if not null, the budget charged for the steps.
+     * @return a Step object representing the last transition or null.
+     */
+    private Step evaluate(List<E> tokens, int startIndex, int endIndex, Budget budget) {
+        Evaluation evaluation = new Evaluation();
+        int start = evaluation.configurations.start();
+        evaluation.active.add(start);
+        List<Step> steps = new ArrayList<Step>();
+        steps.add(new Step(start));
+
+        Step solution = null;
+        for (int index = startIndex; !steps.isEmpty(); index++) {
+            expand(steps, evaluation, tokens, index);
+
+            // can't succeed if no tokens are consumed, and a later end is
+            // a longer match
+            Step end = this.findEnd(steps, evaluation);
+            if (end != null && index > startIndex) {
+                solution = end;
+            }
+
+            evaluation.active.clear();
+            if (index < endIndex) {
+                if (budget != null) {
+                    budget.charge(1 + steps.size());
+                }
+
+                evaluation.memo.next();
+                steps = this.step(steps, tokens.get(index), evaluation);
+            }
+            else {
+                steps = Collections.<Step>emptyList();
+            }
+        }
+
+        return solution;
+    }
+}
@@ -0,0 +1,175 @@
+package edu.washington.cs.knowitall.regex;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import edu.washington.cs.knowitall.regex.FiniteAutomaton.Counter;
+
+/**
+ * The configurations of a {@link CompiledAutomaton} while it runs.  A
+ * configuration is a state together with the values of the repetition
+ * counters.  Configurations are numbered densely as they are reached, so
+ * code that tracks sets of states can track sets of configurations
+ * instead.  In an automaton without counters configuration {@code i} is
+ * simply state {@code i}.
+ *
+ * Counters are reset when their repetition is left, so the values of the
+ * counters outside of their repetition do not split configurations.
+ *
+ * This class is not thread-safe.
+ */
+class Configurations {
+    private final CompiledAutomaton<?> auto;
+    private final int counterCount;
+
+    private int size;
+    private int[] states;
+    private int[] values;
+    private final Map<Key, Integer> ids;
+
+    // scratch space for the values of a new configuration
+    private final int[] scratch;
+
+    public Configurations(CompiledAutomaton<?> auto) {
+        this.auto = auto;
+        this.counterCount = auto.counters.length;
+        this.scratch = new int[this.counterCount];
+        if (this.counterCount == 0) {
+            this.ids = null;
+        }
+        else {
+            this.ids = new HashMap<Key, Integer>();
+            this.states = new int[auto.stateCount()];
+            this.values = new int[auto.stateCount() * this.counterCount];
+        }
+    }
+
+    /**
+     * @return the number of configurations reached so far, which bounds
+     * the configuration numbers.
+     */
+    public int size() {
+        if (this.counterCount == 0) {
+            return this.auto.stateCount();
+        }
+        else {
+            return this.size;
+        }
+    }
+
+    /**
+     * @return the state of {@code configuration}.
+     */
+    public int state(int configuration) {
+        if (this.counterCount == 0) {
+            return configuration;
+        }
+        else {
+            return this.states[configuration];
+        }
+    }
+
+    /**
+     * @return the configuration of the start state.
+     */
+    public int start() {
+        if (this.counterCount == 0) {
+            return this.auto.start;
+        }
+        else {
+            Arrays.fill(this.scratch, 0);
+            return this.id(this.auto.start);
+        }
+    }
+
+    /**
+     * @return the configuration reached by the epsilon transition at
+     * index {@code epsilon}, or -1 if its counter does not allow it.
+     */
+    public int epsilon(int configuration, int epsilon) {
+        int dest = this.auto.epsilonTargets[epsilon];
+        if (this.counterCount == 0) {
+            return dest;
+        }
+
+        System.arraycopy(this.values, configuration * this.counterCount,
+                         this.scratch, 0, this.counterCount);
+        int counter = this.auto.epsilonCounters[epsilon];
+        if (counter >= 0) {
+            Counter.Action action = this.auto.epsilonActions[epsilon];
+            int value = this.auto.counters[counter].apply(action, this.scratch[counter]);
+            if (value < 0) {
+                return -1;
+            }
+            this.scratch[counter] = value;
+        }
+
+        return this.id(dest);
+    }
+
+    /**
+     * @return the configuration reached by the edge at index {@code edge}.
+     */
+    public int edge(int configuration, int edge) {
+        int dest = this.auto.edgeTargets[edge];
+        if (this.counterCount == 0) {
+            return dest;
+        }
+
+        System.arraycopy(this.values, configuration * this.counterCount,
+                         this.scratch, 0, this.counterCount);
+        return this.id(dest);
+    }
+
+    /**
+     * @return the number of the configuration of {@code state} with the
+     * counter values in {@code scratch}.
+     */
+    private int id(int state) {
+        Key key = new Key(state, this.scratch);
+        Integer id = this.ids.get(key);
+        if (id != null) {
+            return id;
+        }
+
+        if (this.size == this.states.length) {
+            this.states = Arrays.copyOf(this.states, this.size * 2);
+            this.values = Arrays.copyOf(this.values, this.size * 2 * this.counterCount);
+        }
+
+        id = this.size++;
+        this.states[id] = state;
+        System.arraycopy(this.scratch, 0, this.values, id * this.counterCount, this.counterCount);
+        this.ids.put(new Key(state, this.scratch.clone()), id);
+        return id;
+    }
+
+    /**
+     * A state and counter values, used to look up configurations.
+     */
+    private static final class Key {
+        private final int state;
+        private final int[] values;
+
+        Key(int state, int[] values) {
+            this.state = state;
+            this.values = values;
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            if (!(other instanceof Key)) {
+                return false;
+            }
+
+            Key key = (Key) other;
+            return this.state == key.state && Arrays.equals(this.values, key.values);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * this.state + Arrays.hashCode(this.values);
+        }
+    }
+}
@@ -1,6 +1,7 @@
 package edu.washington.cs.knowitall.regex;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Iterator;
 import java.util.List;
 
@@ -8,6 +9,7 @@ import com.google.common.base.Joiner;
 import com.google.common.base.Predicate;
 
 import edu.washington.cs.knowitall.regex.FiniteAutomaton.Automaton;
+import edu.washington.cs.knowitall.regex.FiniteAutomaton.Counter;
 import edu.washington.cs.knowitall.regex.FiniteAutomaton.State;
 
 /**
@@ -290,7 +292,7 @@ public interface Expression<E> extends Predicate<E> {
 
         @Override
         public int minMatchingLength() {
-            return 1;
+            return this.expr.minMatchingLength();
         }
     }
 
@@ -346,19 +348,33 @@ public interface Expression<E> extends Predicate<E> {
     /**
      * A minimum to maximum number of occurrences of the enclosed expression.
      *     {@code <foo>{1,3}}
+     * or a minimum number of occurrences with no maximum.
+     *     {@code <foo>{2,}}
      * @author Daniel Naber
      *
      * @param <E>
      */
     public static class MinMax<E> implements Expression<E> {
+        /**
+         * The maximum occurrences of an expression without a maximum.
+         */
+        public static final int UNBOUNDED = Integer.MAX_VALUE;
+
+        /**
+         * Repetitions with at most this many occurrences are built as
+         * copies of the enclosed expression.  Larger ones share a single
+         * copy and count the occurrences while the automaton runs.
+         */
+        static final int MAX_COPIES = 8;
+
         Expression<E> expr;
         final int minOccurrences;
         final int maxOccurrences;
 
         /**
          * @param minOccurrences minimum occurrences, must be >= 0
-         * @param maxOccurrences maximum occurrences, must be >= 1 - you should prefer small values,
-         *                       as the use of large values will create a large automaton that takes a lot of memory
+         * @param maxOccurrences maximum occurrences, must be >= 1, or
+         *                       {@link #UNBOUNDED} for no maximum
          */
         public MinMax(Expression<E> expr, int minOccurrences, int maxOccurrences) {
             this.expr = expr;
@@ -374,6 +390,13 @@ public interface Expression<E> extends Predicate<E> {
             this.maxOccurrences = maxOccurrences;
         }
 
+        /**
+         * @param minOccurrences minimum occurrences, must be >= 0
+         */
+        public MinMax(Expression<E> expr, int minOccurrences) {
+            this(expr, minOccurrences, UNBOUNDED);
+        }
+
         @Override
         public boolean apply(E entity) {
             return this.expr.apply(entity);
@@ -381,7 +404,12 @@ public interface Expression<E> extends Predicate<E> {
 
         @Override
         public String toString() {
-            return this.expr.toString() + "{" + minOccurrences + "," + maxOccurrences + "}";
+            if (maxOccurrences == UNBOUNDED) {
+                return this.expr.toString() + "{" + minOccurrences + ",}";
+            }
+            else {
+                return this.expr.toString() + "{" + minOccurrences + "," + maxOccurrences + "}";
+            }
         }
 
         /**
@@ -389,10 +417,25 @@ public interface Expression<E> extends Predicate<E> {
          */
         @Override
         public Automaton<E> build() {
+            if (maxOccurrences == UNBOUNDED ? minOccurrences <= MAX_COPIES
+                    : maxOccurrences <= MAX_COPIES) {
+                return this.buildCopies();
+            }
+            else {
+                return this.buildCounted();
+            }
+        }
+
+        /**
+         * Build a copy of the enclosed expression for each occurrence.
+         * Without a maximum, the last copy loops.
+         */
+        private Automaton<E> buildCopies() {
             Automaton<E> auto = new Automaton<E>(this);
 
             List<Automaton<E>> subAutos = new ArrayList<Automaton<E>>();
-            int numberOfNodes = maxOccurrences;
+            int numberOfNodes = maxOccurrences == UNBOUNDED
+                ? Math.max(minOccurrences, 1) : maxOccurrences;
             for (int i = 0; i < numberOfNodes; i++) {
                 Automaton<E> sub = this.expr.build();
                 subAutos.add(sub);
@@ -411,8 +454,32 @@ public interface Expression<E> extends Predicate<E> {
                     Automaton<E> nextSub = subAutos.get(i + 1);
                     sub.end.connect(nextSub.start);
                 }
+                else if (maxOccurrences == UNBOUNDED) {
+                    sub.end.connect(sub.start);
+                }
+            }
+
+            if (minOccurrences == 0) {
+                // skip it completely
+                auto.start.connect(auto.end);
             }
 
+            return auto;
+        }
+
+        /**
+         * Build a single copy of the enclosed expression and count the
+         * occurrences with a {@link Counter}.
+         */
+        private Automaton<E> buildCounted() {
+            Automaton<E> auto = new Automaton<E>(this);
+            Automaton<E> sub = this.expr.build();
+            Counter counter = new Counter(minOccurrences, maxOccurrences);
+
+            auto.start.connect(sub.start, counter, Counter.Action.ENTER);
+            sub.end.connect(auto.end, counter, Counter.Action.EXIT);
+            sub.end.connect(sub.start, counter, Counter.Action.REPEAT);
+
             if (minOccurrences == 0) {
                 // skip it completely
                 auto.start.connect(auto.end);
@@ -423,7 +490,7 @@ public interface Expression<E> extends Predicate<E> {
 
         @Override
         public int minMatchingLength() {
-            return this.minOccurrences;
+            return this.minOccurrences * this.expr.minMatchingLength();
         }
     }
 
@@ -437,10 +504,34 @@ public interface Expression<E> extends Predicate<E> {
     static abstract class BaseExpression<E> implements Expression<E> {
         public final String source;
 
+        /**
+         * The parser whose factory created this expression, or null if it
+         * was created some other way.
+         */
+        RegularExpressionParser<?> parser;
+
         public BaseExpression(String source) {
             this.source = source;
         }
 
+        /**
+         * A parser's factory creates the same predicate for the same
+         * source, so base expressions created by the same parser from the
+         * same source may share one predicate.  Other base expressions
+         * might hold state that their source does not show, so they are
+         * only the same predicate as themselves.
+         *
+         * @return a key that is equal for base expressions that are the
+         * same predicate.
+         */
+        Object key() {
+            if (this.parser == null) {
+                return this;
+            }
+
+            return Arrays.<Object>asList(this.parser, this.source);
+        }
+
         /**
          * The delegate to evaluate the expression against a token.
          */
@@ -1,16 +1,9 @@
 package edu.washington.cs.knowitall.regex;
 
 import java.util.ArrayList;
-import java.util.Iterator;
 import java.util.List;
-import java.util.concurrent.atomic.AtomicInteger;
 
 import com.google.common.base.Predicate;
-import com.google.common.collect.Iterables;
-import com.google.common.collect.Lists;
-
-import edu.washington.cs.knowitall.regex.Expression.AssertionExpression;
-import edu.washington.cs.knowitall.regex.Expression.MatchingGroup;
 
 /**
  * A finite automaton implementation.  There is support for epsilon
@@ -31,6 +24,13 @@ public class FiniteAutomaton {
         public final StartState<E> start;
         public final EndState<E> end;
 
+        /**
+         * The compiled form that {@link #apply(List)} and
+         * {@link #lookingAt(List, int)} match against, or null until one of
+         * them is first called.
+         */
+        private volatile CompiledAutomaton<E> compiled;
+
         public Automaton(StartState<E> start, EndState<E> end) {
             this.start = start;
             this.end = end;
@@ -41,278 +41,46 @@ public class FiniteAutomaton {
             this.end = new EndState<E>(expr);
         }
 
-        public boolean apply(List<E> tokens) {
-            return this.evaluate(tokens, true) != null;
-        }
-
-        public int minMatchingLength() {
-            return start.minMatchingLength();
-        }
-
-        public Match.FinalMatch<E> lookingAt(List<E> tokens) {
-            return lookingAt(tokens, 0);
-        }
-
         /**
-         * @return null if no match, otherwise a representation of the match
+         * Compile the automaton into its array-backed form.  Matching
+         * against a compiled automaton avoids walking the state graph, so
+         * callers that match repeatedly should compile once.
          */
-        public Match.FinalMatch<E> lookingAt(List<E> tokens, int startIndex) {
-            if (tokens.size() - startIndex - this.minMatchingLength() < 0) {
-                // don't try if we can't possible match
-                return null;
-            }
-            else {
-                List<E> sublist = tokens.subList(startIndex, tokens.size());
-
-                Step<E> path = this.evaluate(sublist, startIndex == 0);
-                if (path == null) {
-                    return null;
-                }
-
-                // build list of edges
-                List<AbstractEdge<E>> edges = new ArrayList<AbstractEdge<E>>();
-                while (path.state != this.start) {
-                    edges.add(path.path);
-                    path = path.prev;
-                }
-
-                Match.IntermediateMatch<E> match = new Match.IntermediateMatch<E>();
-                buildMatch(sublist.iterator(), null, new AtomicInteger(startIndex), this.start,
-                           Lists.reverse(edges).iterator(), match);
-                return new Match.FinalMatch<E>(match);
-            }
-        }
-
-        /**
-         * Retrace the path through the NFA and produce an object that
-         * represents the match.
-         * @param tokenIterator an iterator over the tokens.
-         * @param expression the expression to match.
-         * @param index the present index.
-         * @param state the present state.
-         * @param edgeIterator an iterator over the edges in the solution.
-         * @param match the solution.
-         * @return
-         */
-        private State<E> buildMatch(Iterator<E> tokenIterator, Expression<E> expression,
-                AtomicInteger index, State<E> state, Iterator<AbstractEdge<E>> edgeIterator,
-                Match.IntermediateMatch<E> match) {
-
-            Match.IntermediateMatch<E> newMatch = new Match.IntermediateMatch<E>();
-
-            while (edgeIterator.hasNext() && !((state instanceof EndState<?>)
-                   && ((EndState<E>)state).expression == expression)) {
-
-                AbstractEdge<E> edge = edgeIterator.next();
-
-                // run the sub-automaton
-                if (edge instanceof Edge<?>
-                    && !(((Edge<?>) edge).expression instanceof AssertionExpression<?>)) {
-                    // consume a token, this is the base case
-                    E token = tokenIterator.next();
-                    newMatch.add(((Edge<E>)edge).expression, token, index.getAndIncrement());
-
-                    state = edge.dest;
-                }
-                else if (state instanceof StartState<?>) {
-                    // recurse on StartState so we have a group for that match
-                    Expression<E> expr = ((StartState<E>)state).expression;
-                    state = buildMatch(tokenIterator, expr, index, edge.dest, edgeIterator, newMatch);
-                    assert(state instanceof EndState<?> && ((EndState<?>)state).expression == expr);
-                }
-                else {
-                    assert(edge instanceof Epsilon<?>);
-                    state = edge.dest;
-                }
-            }
-
-            // add the sub match group
-            if (expression != null
-                && (!newMatch.isEmpty() || expression instanceof MatchingGroup<?>)) {
-                // create a wrapper for the expressions it matched
-                Match.Group<E> pair = new Match.Group<E>(expression);
-                for (Match.Group<E> p : newMatch.pairs()) {
-                    if (p.expr instanceof Expression.BaseExpression<?>) {
-                        pair.addTokens(p);
-                    }
-                }
-
-                // add it
-                match.add(pair);
-            }
-
-            // add the contents of the sub match group
-            match.addAll(newMatch.pairs());
-
-            return state;
+        public CompiledAutomaton<E> compile() {
+            return new CompiledAutomaton<E>(this);
         }
 
         /**
-         * A representation of a movement from a state to another, with a
-         * backreference to the previous state.  This is used in building
-         * a match object once a solution has been found.
-         * @author Michael Schmitz <schmmd@cs.washington.edu>
-         *
-         * @param <E>
+         * @return the compiled form, compiling the automaton the first time.
+         * The automaton must not be modified once it has been matched.
          */
-        private static class Step<E> {
-            public final State<E> state;
-            public final Step<E> prev;
-            public final AbstractEdge<E> path;
-
-            public Step(State<E> state) {
-                this(state, null, null);
+        private CompiledAutomaton<E> compiled() {
+            CompiledAutomaton<E> compiled = this.compiled;
+            if (compiled == null) {
+                compiled = this.compile();
+                this.compiled = compiled;
             }
 
-            public Step(State<E> state, Step<E> prev, AbstractEdge<E> path) {
-                this.state = state;
-                this.prev = prev;
-                this.path = path;
-            }
-
-            public String toString() {
-                return this.state.toString();
-            }
-        }
-
-        /**
-         * Expand all epsilon transitions for the supplied steps.  That is,
-         * add all states available via an epsilon transition from a supplied
-         * state to the list.
-         * @param steps
-         */
-        private void expandEpsilons(List<Step<E>> steps) {
-            int size = steps.size();
-            for (int i = 0; i < size; i++) {
-                Step<E> step = steps.get(i);
-
-                expandEpsilon(step, steps);
-            }
+            return compiled;
         }
 
-        /**
-         * Expand all epsilon transitions for the specified step.  That is,
-         * add all states avaiable via an epsilon transition from step.state.
-         * @param step
-         * @param steps
-         */
-        private void expandEpsilon(Step<E> step, List<Step<E>> steps) {
-            // loop over edges
-            for (final Epsilon<E> edge : step.state.epsilons) {
-
-                // try free edges if they do not lead to an existing
-                // step
-                if (!Iterables.any(steps,
-                                new Predicate<Step<E>>() {
-                                    @Override
-                                    public boolean apply(Step<E> step) {
-                                        return step.state == edge.dest;
-                                    }
-                                })) {
-                    Step<E> newstep = new Step<E>(edge.dest, step, edge);
-                    steps.add(newstep);
-                    expandEpsilon(newstep, steps);
-                }
-            }
+        public boolean apply(List<E> tokens) {
+            return this.compiled().apply(tokens);
         }
 
-        /**
-         * Expand any state that has an assertion edge if the assertion passes
-         * given the present state.
-         * @param steps
-         * @param newsteps
-         * @param hasStart true iff the tokens contains the start token.
-         * @param tokens
-         * @param totalTokens
-         */
-        private void expandAssertions(List<Step<E>> steps, List<Step<E>> newsteps, boolean hasStart,
-                                      List<E> tokens, int totalTokens) {
-            for (Step<E> step : steps) {
-                for (final Edge<E> edge : step.state.edges) {
-                    if (edge.expression instanceof AssertionExpression<?>) {
-                        AssertionExpression<E> assertion = (AssertionExpression<E>)edge.expression;
-
-                        if (assertion.apply(hasStart, tokens, totalTokens)) {
-                            newsteps.add(new Step<E>(edge.dest, step, edge));
-                        }
-                    }
-                }
-            }
+        public int minMatchingLength() {
+            return start.minMatchingLength();
         }
 
-        private Step<E> evaluate(List<E> tokens, boolean hasStart) {
-            List<Step<E>> steps = new ArrayList<Step<E>>();
-            steps.add(new Step<E>(this.start));
-            return evaluate(tokens, steps, hasStart);
+        public Match.FinalMatch<E> lookingAt(List<E> tokens) {
+            return lookingAt(tokens, 0);
         }
 
         /**
-         * Evaluate the NFA against the list of tokens using the Thompson NFA
-         * algorithm.
-         * @param tokens the tokens to evaluate against
-         * @param steps present list of accessible states.
-         * @param hasStart true iff tokens contains the start token.
-         * @return a Step object representing the last transition or null.
+         * @return null if no match, otherwise a representation of the match
          */
-        private Step<E> evaluate(List<E> tokens, List<Step<E>> steps, boolean hasStart) {
-            int totalTokens = tokens.size();
-
-            int solutionTokensLeft = totalTokens;
-            Step<E> solution = null;
-            while (!steps.isEmpty()) {
-
-                expandEpsilons(steps);
-
-                List<Step<E>> intermediate = new ArrayList<Step<E>>(steps);
-                List<Step<E>> newsteps = new ArrayList<Step<E>>(steps.size() * 2);
-                do {
-
-                    // check if at end
-                    for (Step<E> step : intermediate) {
-                        if (step.state == this.end) {
-                            if (tokens.size() == totalTokens) {
-                                // can't succeed if no tokens are consumed
-                            }
-                            else {
-                                // we have reached the end
-                                if (tokens.size() < solutionTokensLeft) {
-                                    solution = step;
-                                    solutionTokensLeft = tokens.size();
-                                }
-                            }
-                        }
-                    }
-
-                    // handle assertions
-                    newsteps.clear();
-                    expandAssertions(intermediate, newsteps, hasStart, tokens, totalTokens);
-                    expandEpsilons(newsteps);
-
-                    intermediate.clear();
-                    intermediate.addAll(newsteps);
-
-                    steps.addAll(newsteps);
-                } while (newsteps.size() > 0);
-
-                newsteps.clear();
-                if (!tokens.isEmpty()) {
-                    for (Step<E> step : steps) {
-                        for (final Edge<E> edge : step.state.edges) {
-                            // try other edges if they match the current token
-                            if (edge.apply(tokens.get(0))) {
-                                newsteps.add(new Step<E>(edge.dest, step, edge));
-                            }
-                        }
-                    }
-
-                    // consume a token
-                    tokens = tokens.subList(1, tokens.size());
-                }
-
-                steps = newsteps;
-            }
-
-            return solution;
+        public Match.FinalMatch<E> lookingAt(List<E> tokens, int startIndex) {
+            return this.compiled().lookingAt(tokens, startIndex);
         }
     }
 
@@ -334,6 +102,17 @@ public class FiniteAutomaton {
             this.epsilons.add(new Epsilon<E>(dest));
         }
 
+        /**
+         * Add an epsilon transition between this state and dest that is
+         * guarded by, and updates, a repetition counter.
+         * @param dest the state to connect
+         * @param counter the counter of the repetition
+         * @param action what the transition does to the counter
+         */
+        public void connect(State<E> dest, Counter counter, Counter.Action action) {
+            this.epsilons.add(new CountedEpsilon<E>(dest, counter, action));
+        }
+
         /**
          * Add an edge between this state and dest.
          * @param dest the state to connect
@@ -460,4 +239,112 @@ public class FiniteAutomaton {
             return true;
         }
     }
+
+    /**
+     * An epsilon transition that is guarded by, and updates, a repetition
+     * counter.
+     *
+     * @param <E>
+     */
+    public static class CountedEpsilon<E> extends Epsilon<E> {
+        public final Counter counter;
+        public final Counter.Action action;
+
+        public CountedEpsilon(State<E> dest, Counter counter, Counter.Action action) {
+            super(dest);
+            this.counter = counter;
+            this.action = action;
+        }
+
+        @Override
+        public String toString() {
+            return "(" + this.action + " " + this.counter + ") -> " + dest.toString();
+        }
+    }
+
+    /**
+     * The number of times the body of a bounded repetition has been
+     * matched.  The body is built once, and the counter is carried along
+     * with each state of the body while the automaton runs, so the
+     * automaton does not grow with the bounds.
+     *
+     * The value of the counter is the number of iterations completed
+     * before the present one.  With an unbounded maximum the value stops
+     * growing once the minimum is reached, since the exact count no longer
+     * matters.
+     */
+    public static class Counter {
+        /**
+         * The transitions into, around and out of the body.
+         */
+        public enum Action {
+            /**
+             * Start the first iteration, setting the counter to 0.
+             */
+            ENTER,
+
+            /**
+             * Start another iteration, if fewer than the maximum iterations
+             * have completed.
+             */
+            REPEAT,
+
+            /**
+             * Leave the body, if at least the minimum iterations have
+             * completed, resetting the counter to 0.
+             */
+            EXIT
+        }
+
+        public final int minOccurrences;
+        public final int maxOccurrences;
+
+        /**
+         * @param maxOccurrences the maximum occurrences, or
+         * {@link Integer#MAX_VALUE} if there is no maximum.
+         */
+        public Counter(int minOccurrences, int maxOccurrences) {
+            this.minOccurrences = minOccurrences;
+            this.maxOccurrences = maxOccurrences;
+        }
+
+        public boolean isBounded() {
+            return this.maxOccurrences != Integer.MAX_VALUE;
+        }
+
+        /**
+         * @return the value of the counter after {@code action}, or -1 if
+         * {@code action} is not allowed when the counter is {@code value}.
+         */
+        public int apply(Action action, int value) {
+            switch (action) {
+            case ENTER:
+                return 0;
+            case REPEAT:
+                if (!this.isBounded()) {
+                    return Math.min(value + 1, Math.max(this.minOccurrences - 1, 0));
+                }
+                else if (value + 1 < this.maxOccurrences) {
+                    return value + 1;
+                }
+                else {
+                    return -1;
+                }
+            case EXIT:
+                return value + 1 >= this.minOccurrences ? 0 : -1;
+            default:
+                throw new IllegalStateException();
+            }
+        }
+
+        @Override
+        public String toString() {
+            if (this.isBounded()) {
+                return "{" + this.minOccurrences + "," + this.maxOccurrences + "}";
+            }
+            else {
+                return "{" + this.minOccurrences + ",}";
+            }
+        }
+    }
 }
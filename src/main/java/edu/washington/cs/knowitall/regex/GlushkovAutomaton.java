@@ -0,0 +1,352 @@
+package edu.washington.cs.knowitall.regex;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import edu.washington.cs.knowitall.regex.Expression.BaseExpression;
+import edu.washington.cs.knowitall.regex.Expression.EndAssertion;
+import edu.washington.cs.knowitall.regex.Expression.StartAssertion;
+
+/**
+ * The Glushkov (position) automaton of a {@link CompiledAutomaton}, which
+ * has no epsilon transitions, for boolean matching only: it tells whether
+ * the tokens match, but not where a match is or what its groups are.
+ * There is a position for the start state and one for each state a token
+ * leads to, which in an automaton built from an {@link Expression} is one
+ * per occurrence of a {@link BaseExpression}.
+ * The transitions of a position are the edges that consume a token out of
+ * the states reached from it without consuming one, so a step only visits
+ * positions instead of the connector, start and end states between them.
+ *
+ * The assertions passed on the way to an edge or to an accepting state
+ * are kept as the condition of the transition or of the acceptance: it
+ * may require the position in the tokens to be the first, the last, or
+ * both.  Group boundaries are not positions and are not kept, so the
+ * automaton only answers what {@link CompiledAutomaton#apply(List)} and
+ * the like do; a {@link Match} and its groups are always found on the NFA.
+ *
+ * Counters make the transitions depend on more than the state, so there is
+ * no position automaton for an NFA with counters.  Nor is there one when
+ * removing the epsilons would multiply the transitions, as it can for a
+ * repetition of a large alternation, where every position follows every
+ * other.
+ *
+ * A position automaton is not modified after it is built, so it may be
+ * shared between threads.
+ *
+ * @param <E>
+ */
+class GlushkovAutomaton<E> {
+    /**
+     * Conditions on the position in the tokens, by the assertions that
+     * must hold there.
+     */
+    static final byte ANYWHERE = 0;
+    static final byte AT_START = 1;
+    static final byte AT_END = 2;
+
+    /**
+     * The position of the start state.
+     */
+    static final int START = 0;
+
+    /**
+     * The transitions allowed per transition of the NFA, beyond a small
+     * constant.
+     */
+    private static final int MAX_GROWTH = 8;
+    private static final int MAX_EXTRA_TRANSITIONS = 4096;
+
+    final CompiledAutomaton<E> nfa;
+
+    /**
+     * The transitions out of position {@code p} are stored at indices
+     * {@code offsets[p]} (inclusive) to {@code offsets[p + 1]}
+     * (exclusive) of the parallel arrays.  The expressions are numbered
+     * as in the NFA.
+     */
+    final int[] offsets;
+    final int[] targets;
+    final int[] expressions;
+    final byte[] conditions;
+
+    /**
+     * The patterns position {@code p} accepts, and the condition under
+     * which it accepts each, likewise from {@code acceptOffsets[p]} to
+     * {@code acceptOffsets[p + 1]}.
+     */
+    final int[] acceptOffsets;
+    final int[] acceptPatterns;
+    final byte[] acceptConditions;
+
+    private GlushkovAutomaton(CompiledAutomaton<E> nfa, int[] offsets, int[] targets,
+            int[] expressions, byte[] conditions, int[] acceptOffsets, int[] acceptPatterns,
+            byte[] acceptConditions) {
+        this.nfa = nfa;
+        this.offsets = offsets;
+        this.targets = targets;
+        this.expressions = expressions;
+        this.conditions = conditions;
+        this.acceptOffsets = acceptOffsets;
+        this.acceptPatterns = acceptPatterns;
+        this.acceptConditions = acceptConditions;
+    }
+
+    /**
+     * Remove the epsilon transitions of {@code nfa}.
+     * @return the position automaton, or null if it has counters, an
+     * assertion other than {@code ^} and {@code $}, or too many
+     * transitions.
+     */
+    static <E> GlushkovAutomaton<E> build(CompiledAutomaton<E> nfa) {
+        byte[] assertionConditions = GlushkovAutomaton.assertionConditions(nfa);
+        if (nfa.counters.length > 0 || assertionConditions == null) {
+            return null;
+        }
+
+        // number the start state and the states a token leads to
+        int stateCount = nfa.stateCount();
+        int[] positions = new int[stateCount];
+        Arrays.fill(positions, -1);
+        int[] states = new int[stateCount];
+        int positionCount = 0;
+        positions[nfa.start] = positionCount;
+        states[positionCount++] = nfa.start;
+        for (int e = 0; e < nfa.edgeTargets.length; e++) {
+            int dest = nfa.edgeTargets[e];
+            if (!nfa.assertions[nfa.edgeExpressions[e]] && positions[dest] < 0) {
+                positions[dest] = positionCount;
+                states[positionCount++] = dest;
+            }
+        }
+
+        int maxTransitions = MAX_GROWTH * (nfa.edgeTargets.length + nfa.epsilonTargets.length)
+            + MAX_EXTRA_TRANSITIONS;
+        int[] offsets = new int[positionCount + 1];
+        int[] targets = new int[16];
+        int[] expressions = new int[16];
+        byte[] conditions = new byte[16];
+        int transitionCount = 0;
+        int[] acceptOffsets = new int[positionCount + 1];
+        int[] acceptPatterns = new int[16];
+        byte[] acceptConditions = new byte[16];
+        int acceptCount = 0;
+
+        // a state reached from a position is visited once per condition,
+        // each encoded as 4 * state + condition
+        int[] visited = new int[4 * stateCount];
+        int[] stack = new int[4 * stateCount];
+        Set<Long> seen = new HashSet<Long>();
+        for (int position = 0; position < positionCount; position++) {
+            offsets[position] = transitionCount;
+            acceptOffsets[position] = acceptCount;
+            seen.clear();
+
+            // only the start position can be at the first token
+            byte possible = position == START ? (byte) (AT_START | AT_END) : AT_END;
+
+            int depth = 0;
+            visited[4 * states[position]] = position + 1;
+            stack[depth++] = 4 * states[position];
+            while (depth > 0) {
+                int top = stack[--depth];
+                int state = top / 4;
+                byte condition = (byte) (top % 4);
+
+                if (nfa.accepting[state] >= 0
+                        && seen.add(key(-1, nfa.accepting[state], condition))) {
+                    if (acceptCount == acceptPatterns.length) {
+                        acceptPatterns = Arrays.copyOf(acceptPatterns, 2 * acceptCount);
+                        acceptConditions = Arrays.copyOf(acceptConditions, 2 * acceptCount);
+                    }
+
+                    acceptPatterns[acceptCount] = nfa.accepting[state];
+                    acceptConditions[acceptCount++] = condition;
+                }
+
+                for (int e = nfa.epsilonOffsets[state]; e < nfa.epsilonOffsets[state + 1]; e++) {
+                    int next = 4 * nfa.epsilonTargets[e] + condition;
+                    if (visited[next] != position + 1) {
+                        visited[next] = position + 1;
+                        stack[depth++] = next;
+                    }
+                }
+
+                for (int e = nfa.edgeOffsets[state]; e < nfa.edgeOffsets[state + 1]; e++) {
+                    int expression = nfa.edgeExpressions[e];
+                    if (nfa.assertions[expression]) {
+                        // pass the assertion if it can hold here
+                        if ((assertionConditions[expression] & possible) != 0) {
+                            int next = 4 * nfa.edgeTargets[e]
+                                + (condition | assertionConditions[expression]);
+                            if (visited[next] != position + 1) {
+                                visited[next] = position + 1;
+                                stack[depth++] = next;
+                            }
+                        }
+                    }
+                    // no token follows the last one
+                    else if ((condition & AT_END) == 0) {
+                        int target = positions[nfa.edgeTargets[e]];
+                        if (seen.add(key(expression, target, condition))) {
+                            if (transitionCount == maxTransitions) {
+                                return null;
+                            }
+
+                            if (transitionCount == targets.length) {
+                                targets = Arrays.copyOf(targets, 2 * transitionCount);
+                                expressions = Arrays.copyOf(expressions, 2 * transitionCount);
+                                conditions = Arrays.copyOf(conditions, 2 * transitionCount);
+                            }
+
+                            targets[transitionCount] = target;
+                            expressions[transitionCount] = expression;
+                            conditions[transitionCount++] = condition;
+                        }
+                    }
+                }
+            }
+        }
+        offsets[positionCount] = transitionCount;
+        acceptOffsets[positionCount] = acceptCount;
+
+        return new GlushkovAutomaton<E>(nfa, offsets,
+                Arrays.copyOf(targets, transitionCount),
+                Arrays.copyOf(expressions, transitionCount),
+                Arrays.copyOf(conditions, transitionCount), acceptOffsets,
+                Arrays.copyOf(acceptPatterns, acceptCount),
+                Arrays.copyOf(acceptConditions, acceptCount));
+    }
+
+    /**
+     * @return the condition under which each expression of {@code nfa}
+     * that is an assertion holds, or null if it has an assertion other
+     * than {@code ^} and {@code $}.
+     */
+    static byte[] assertionConditions(CompiledAutomaton<?> nfa) {
+        byte[] conditions = new byte[nfa.expressions.length];
+        for (int i = 0; i < nfa.expressions.length; i++) {
+            if (nfa.expressions[i] instanceof StartAssertion<?>) {
+                conditions[i] = AT_START;
+            }
+            else if (nfa.expressions[i] instanceof EndAssertion<?>) {
+                conditions[i] = AT_END;
+            }
+            else if (nfa.assertions[i]) {
+                return null;
+            }
+        }
+
+        return conditions;
+    }
+
+    /**
+     * @return a key for a transition, or for an acceptance if
+     * {@code expression} is -1.
+     */
+    private static long key(int expression, int target, byte condition) {
+        return ((long) expression << 34) | ((long) target << 2) | condition;
+    }
+
+    public int positionCount() {
+        return this.offsets.length - 1;
+    }
+
+    /**
+     * @return true iff {@code condition} holds at {@code index} in tokens
+     * of length {@code size}.
+     */
+    static boolean holds(byte condition, int index, int size) {
+        return ((condition & AT_START) == 0 || index == 0)
+            && ((condition & AT_END) == 0 || index == size);
+    }
+
+    /**
+     * Run the automaton over the tokens, as
+     * {@link CompiledAutomaton#simulate} runs the NFA.
+     * @param lastStart the last index where a match may begin.
+     * @param whole true iff the match must end at the last token.
+     * @param found if not null, the patterns found are added to it and the
+     * simulation only stops early once every pattern is found.
+     * @return true iff a match begins between {@code startIndex} and
+     * {@code lastStart}.
+     */
+    boolean simulate(List<E> tokens, int startIndex, int lastStart, boolean whole,
+                     BitSet found) {
+        int size = tokens.size();
+        if (startIndex > lastStart) {
+            return false;
+        }
+
+        CompiledAutomaton<E>.Memo memo = this.nfa.new Memo();
+        SparseSet active = new SparseSet(this.positionCount());
+        SparseSet next = new SparseSet(this.positionCount());
+        for (int index = startIndex; ; index++) {
+            memo.next();
+
+            // the positions so far have consumed a token
+            if (this.accepts(active, index, size, found)
+                    && (!whole || index == size)
+                    && (found == null || found.cardinality() == this.nfa.patternCount)) {
+                return true;
+            }
+
+            if (index == size) {
+                return false;
+            }
+
+            // start a new path
+            E token = tokens.get(index);
+            if (index <= lastStart && this.nfa.canStart(token, memo)) {
+                active.add(START);
+            }
+
+            next.clear();
+            for (int i = 0; i < active.size(); i++) {
+                int position = active.get(i);
+                for (int t = this.offsets[position]; t < this.offsets[position + 1]; t++) {
+                    int target = this.targets[t];
+                    if (!next.contains(target) && holds(this.conditions[t], index, size)
+                            && memo.apply(this.expressions[t], token)) {
+                        next.add(target);
+                    }
+                }
+            }
+
+            SparseSet swap = active;
+            active = next;
+            next = swap;
+
+            if (active.isEmpty() && index + 1 > lastStart) {
+                return false;
+            }
+        }
+    }
+
+    /**
+     * @param found if not null, the patterns accepted are added to it.
+     * @return true iff a position in {@code active} accepts at
+     * {@code index}.
+     */
+    private boolean accepts(SparseSet active, int index, int size, BitSet found) {
+        boolean accepts = false;
+        for (int i = 0; i < active.size(); i++) {
+            int position = active.get(i);
+            for (int a = this.acceptOffsets[position]; a < this.acceptOffsets[position + 1]; a++) {
+                if (holds(this.acceptConditions[a], index, size)) {
+                    if (found == null) {
+                        return true;
+                    }
+
+                    accepts = true;
+                    found.set(this.acceptPatterns[a]);
+                }
+            }
+        }
+
+        return accepts;
+    }
+}
@@ -0,0 +1,617 @@
+package edu.washington.cs.knowitall.regex;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import edu.washington.cs.knowitall.regex.Expression.EndAssertion;
+import edu.washington.cs.knowitall.regex.Expression.StartAssertion;
+
+/**
+ * A deterministic automaton that is built lazily from a
+ * {@link CompiledAutomaton} while it is run.  Each state of the DFA is the
+ * set of NFA configurations (see {@link Configurations}) reachable after
+ * some tokens, and each token is
+ * classified by the truth values of the distinct expressions on the edges
+ * leaving that set.  Transitions are cached by that truth vector, so once
+ * the DFA is warm a token costs the predicate evaluations and one lookup.
+ *
+ * The DFA does not track the path through the NFA, so it can only report
+ * whether and where a match ends.  The cache is bounded by
+ * {@code maxStates}; when it fills up it is flushed and rebuilt on demand.
+ *
+ * This class is not thread-safe.
+ *
+ * @param <E>
+ */
+class LazyDfa<E> {
+    public static final int DEFAULT_MAX_STATES = 10000;
+
+    /**
+     * Assertion kinds, by the context in which they hold.
+     */
+    private static final byte NOT_ASSERTION = 0;
+    private static final byte AT_START = 1;
+    private static final byte AT_END = 2;
+
+    /**
+     * Variants of a DFA state, by the new thread (if any) that starts at
+     * the present position.  Anchored searches never start new threads.
+     */
+    private static final int NONE = 0;
+    private static final int FRESH = 1;
+    private static final int FRESH_AT_START = 2;
+
+    /**
+     * Transition tables of states with at most this many predicates are
+     * arrays indexed by the truth vector; larger ones are hash maps.
+     */
+    private static final int MAX_TABLE_PREDICATES = 6;
+
+    private final CompiledAutomaton<E> nfa;
+    private final int maxStates;
+    private final byte[] assertionKinds;
+
+    /**
+     * The configurations of the NFA.  These are not flushed with the cache
+     * since the state being left during a flush refers to them; there are
+     * finitely many since counters are bounded or saturate.
+     */
+    private final Configurations configurations;
+
+    private final Map<Closure, Closure> closures = new HashMap<Closure, Closure>();
+    private int stateCount;
+
+    private Closure empty;
+    private Closure start;
+    private Closure startAtStart;
+
+    // scratch space for computing closures
+    private final SparseSet reached;
+
+    public LazyDfa(CompiledAutomaton<E> nfa) {
+        this(nfa, DEFAULT_MAX_STATES);
+    }
+
+    public LazyDfa(CompiledAutomaton<E> nfa, int maxStates) {
+        if (maxStates < 1) {
+            throw new IllegalArgumentException("maxStates must be >= 1: " + maxStates);
+        }
+
+        this.nfa = nfa;
+        this.maxStates = maxStates;
+
+        this.assertionKinds = new byte[nfa.expressions.length];
+        for (int i = 0; i < nfa.expressions.length; i++) {
+            Expression<E> expr = nfa.expressions[i];
+            if (expr instanceof StartAssertion<?>) {
+                this.assertionKinds[i] = AT_START;
+            }
+            else if (expr instanceof EndAssertion<?>) {
+                this.assertionKinds[i] = AT_END;
+            }
+            else if (nfa.assertions[i]) {
+                throw new IllegalArgumentException("unsupported assertion: " + expr);
+            }
+            else {
+                this.assertionKinds[i] = NOT_ASSERTION;
+            }
+        }
+
+        this.configurations = new Configurations(nfa);
+        this.reached = new SparseSet(nfa.stateCount());
+    }
+
+    /**
+     * @return the number of DFA states presently cached.
+     */
+    public int cachedStates() {
+        return this.stateCount;
+    }
+
+    /**
+     * Find the longest match that begins at {@code start}.
+     *
+     * @return the index one past the last token of the longest match, or
+     * -1 if no match begins at {@code start}.
+     */
+    public int longestMatch(List<E> tokens, int start) {
+        int size = tokens.size();
+        DfaState state = this.variant(this.initial(start == 0), NONE);
+
+        int end = -1;
+        for (int i = start; i < size; i++) {
+            state = this.next(state, tokens.get(i), NONE);
+            if (state.closure.isEmpty()) {
+                break;
+            }
+
+            if (this.accepts(state.closure, i + 1 == size)) {
+                end = i + 1;
+            }
+        }
+
+        return end;
+    }
+
+    /**
+     * Determine whether a match begins at or after {@code start}.  New
+     * threads are only started at indices where a match of
+     * {@code minMatchingLength} tokens could fit.
+     *
+     * @return true iff some match begins at or after {@code start}.
+     */
+    public boolean contains(List<E> tokens, int start) {
+        int size = tokens.size();
+        int lastStart = size - this.nfa.minMatchingLength();
+
+        DfaState state = this.variant(this.empty(), this.fresh(start, lastStart));
+        for (int i = start; i < size; i++) {
+            if (state.variant == NONE && state.closure.isEmpty()) {
+                return false;
+            }
+
+            state = this.next(state, tokens.get(i), this.fresh(i + 1, lastStart));
+            if (this.accepts(state.closure, i + 1 == size)) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * Find where the leftmost match could end.  New threads are started
+     * until the first match ends; matches that begin later cannot be the
+     * leftmost.  The threads already started are followed until they die,
+     * so every match that begins before the first end is followed to its
+     * end.
+     *
+     * @return the index where the first match ends and the last index
+     * where one of the followed matches ends, or null if no match begins
+     * at or after {@code start}.
+     */
+    public int[] matchEnds(List<E> tokens, int start) {
+        int size = tokens.size();
+        int lastStart = size - this.nfa.minMatchingLength();
+
+        int first = -1;
+        int last = -1;
+        DfaState state = this.variant(this.empty(), this.fresh(start, lastStart));
+        for (int i = start; i < size; i++) {
+            if (state.variant == NONE && state.closure.isEmpty()) {
+                break;
+            }
+
+            state = this.next(state, tokens.get(i), this.fresh(i + 1, lastStart));
+            if (this.accepts(state.closure, i + 1 == size)) {
+                if (first < 0) {
+                    first = i + 1;
+                    lastStart = -1;
+                    state = this.variant(state.closure, NONE);
+                }
+                last = i + 1;
+            }
+        }
+
+        return first < 0 ? null : new int[] { first, last };
+    }
+
+    /**
+     * Find the last end of the matches that begin between {@code start}
+     * and {@code lastStart}, reading no tokens past {@code endIndex}.
+     *
+     * @return the index one past the last token of the match that ends
+     * last, or -1 if there is no such match.
+     */
+    public int lastEnd(List<E> tokens, int start, int lastStart, int endIndex) {
+        int size = tokens.size();
+
+        int end = -1;
+        DfaState state = this.variant(this.empty(), this.fresh(start, lastStart));
+        for (int i = start; i < endIndex; i++) {
+            if (state.variant == NONE && state.closure.isEmpty()) {
+                break;
+            }
+
+            state = this.next(state, tokens.get(i), this.fresh(i + 1, lastStart));
+            if (this.accepts(state.closure, i + 1 == size)) {
+                end = i + 1;
+            }
+        }
+
+        return end;
+    }
+
+    /**
+     * @return the variant of the state at {@code index}.
+     */
+    private int fresh(int index, int lastStart) {
+        if (index > lastStart) {
+            return NONE;
+        }
+        else if (index == 0) {
+            return FRESH_AT_START;
+        }
+        else {
+            return FRESH;
+        }
+    }
+
+    /**
+     * Take the transition out of {@code state} on {@code token}.
+     */
+    private DfaState next(DfaState state, E token, int variant) {
+        int[] predicates = state.predicates;
+        long[] signature = null;
+        long bits = 0;
+        if (predicates.length <= 64) {
+            for (int i = 0; i < predicates.length; i++) {
+                if (this.nfa.expressions[predicates[i]].apply(token)) {
+                    bits |= 1L << i;
+                }
+            }
+        }
+        else {
+            signature = new long[(predicates.length + 63) / 64];
+            for (int i = 0; i < predicates.length; i++) {
+                if (this.nfa.expressions[predicates[i]].apply(token)) {
+                    signature[i / 64] |= 1L << (i % 64);
+                }
+            }
+        }
+
+        Closure next = state.transition(bits, signature);
+        if (next == null) {
+            if (this.stateCount >= this.maxStates) {
+                this.flush(state);
+            }
+            next = this.step(state, bits, signature);
+            state.cache(bits, signature, next);
+        }
+
+        return this.variant(next, variant);
+    }
+
+    /**
+     * Compute the closure reached from {@code state} when the predicates
+     * with set bits in the truth vector hold.
+     */
+    private Closure step(DfaState state, long bits, long[] signature) {
+        // the fresh closure is computed first since it shares the scratch space
+        int[] fresh = state.variant == NONE ? null : this.freshClosure(state.variant).states;
+
+        this.stepFrom(state.closure.states, state, bits, signature);
+        if (fresh != null) {
+            this.stepFrom(fresh, state, bits, signature);
+        }
+
+        return this.close(false);
+    }
+
+    private void stepFrom(int[] configurations, DfaState state, long bits, long[] signature) {
+        for (int c : configurations) {
+            int s = this.configurations.state(c);
+            for (int i = this.nfa.edgeOffsets[s]; i < this.nfa.edgeOffsets[s + 1]; i++) {
+                int expression = this.nfa.edgeExpressions[i];
+                if (this.assertionKinds[expression] != NOT_ASSERTION) {
+                    continue;
+                }
+
+                int bit = Arrays.binarySearch(state.predicates, expression);
+                boolean holds = signature == null
+                    ? (bits & (1L << bit)) != 0
+                    : (signature[bit / 64] & (1L << (bit % 64))) != 0;
+                if (holds) {
+                    this.reached.add(this.configurations.edge(c, i));
+                }
+            }
+        }
+    }
+
+    /**
+     * Expand the reached configurations through epsilon transitions and
+     * through the assertions that hold in the given context, then intern
+     * the resulting set.
+     */
+    private Closure close(boolean atStart) {
+        int[] states = this.expand(atStart, false);
+        return this.intern(new Closure(states, this.containsEnd(states)));
+    }
+
+    private int[] expand(boolean atStart, boolean atEnd) {
+        for (int k = 0; k < this.reached.size(); k++) {
+            int c = this.reached.get(k);
+            int s = this.configurations.state(c);
+            for (int i = this.nfa.epsilonOffsets[s]; i < this.nfa.epsilonOffsets[s + 1]; i++) {
+                int dest = this.configurations.epsilon(c, i);
+                if (dest >= 0) {
+                    this.reached.add(dest);
+                }
+            }
+            for (int i = this.nfa.edgeOffsets[s]; i < this.nfa.edgeOffsets[s + 1]; i++) {
+                byte kind = this.assertionKinds[this.nfa.edgeExpressions[i]];
+                if (kind == AT_START && atStart || kind == AT_END && atEnd) {
+                    this.reached.add(this.configurations.edge(c, i));
+                }
+            }
+        }
+
+        int[] states = new int[this.reached.size()];
+        for (int k = 0; k < states.length; k++) {
+            states[k] = this.reached.get(k);
+        }
+        this.reached.clear();
+        Arrays.sort(states);
+
+        return states;
+    }
+
+    private boolean containsEnd(int[] configurations) {
+        for (int c : configurations) {
+            if (this.configurations.state(c) == this.nfa.end) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    private Closure intern(Closure closure) {
+        Closure existing = this.closures.get(closure);
+        if (existing != null) {
+            return existing;
+        }
+
+        this.closures.put(closure, closure);
+        this.stateCount++;
+        return closure;
+    }
+
+    /**
+     * @return the closure of the start state.
+     */
+    private Closure initial(boolean atStart) {
+        if (atStart) {
+            if (this.startAtStart == null) {
+                this.startAtStart = this.closeStart(true);
+            }
+            return this.startAtStart;
+        }
+        else {
+            if (this.start == null) {
+                this.start = this.closeStart(false);
+            }
+            return this.start;
+        }
+    }
+
+    private Closure closeStart(boolean atStart) {
+        this.reached.add(this.configurations.start());
+        return this.close(atStart);
+    }
+
+    private Closure freshClosure(int variant) {
+        return this.initial(variant == FRESH_AT_START);
+    }
+
+    private Closure empty() {
+        if (this.empty == null) {
+            this.empty = this.intern(new Closure(new int[0], false));
+        }
+        return this.empty;
+    }
+
+    /**
+     * Drop every cached state.  {@code current} stays usable but forgets
+     * its transitions.
+     */
+    private void flush(DfaState current) {
+        this.closures.clear();
+        this.stateCount = 0;
+        this.empty = null;
+        this.start = null;
+        this.startAtStart = null;
+
+        current.clear();
+        current.closure.clear();
+    }
+
+    /**
+     * @param atEnd true iff no tokens remain.
+     * @return true iff a match ends in {@code closure}.
+     */
+    private boolean accepts(Closure closure, boolean atEnd) {
+        if (closure.accepting || !atEnd) {
+            return closure.accepting;
+        }
+
+        if (closure.acceptsAtEnd == 0) {
+            for (int c : closure.states) {
+                this.reached.add(c);
+            }
+            closure.acceptsAtEnd =
+                this.containsEnd(this.expand(false, true)) ? (byte) 2 : (byte) 1;
+        }
+
+        return closure.acceptsAtEnd == 2;
+    }
+
+    /**
+     * @return the DFA state of {@code closure} with the given variant.
+     */
+    private DfaState variant(Closure closure, int variant) {
+        DfaState state = closure.variants[variant];
+        if (state == null) {
+            state = new DfaState(closure, variant, this.predicates(closure, variant));
+            closure.variants[variant] = state;
+            this.stateCount++;
+        }
+
+        return state;
+    }
+
+    /**
+     * @return the predicates on the consuming edges leaving the states of
+     * a DFA state, sorted and without duplicates.
+     */
+    private int[] predicates(Closure closure, int variant) {
+        int[] states = closure.states;
+        if (variant != NONE) {
+            int[] fresh = this.freshClosure(variant).states;
+            states = Arrays.copyOf(states, states.length + fresh.length);
+            System.arraycopy(fresh, 0, states, closure.states.length, fresh.length);
+        }
+
+        int count = 0;
+        int[] predicates = new int[this.nfa.expressions.length];
+        boolean[] seen = new boolean[this.nfa.expressions.length];
+        for (int c : states) {
+            int s = this.configurations.state(c);
+            for (int i = this.nfa.edgeOffsets[s]; i < this.nfa.edgeOffsets[s + 1]; i++) {
+                int expression = this.nfa.edgeExpressions[i];
+                if (this.assertionKinds[expression] == NOT_ASSERTION && !seen[expression]) {
+                    seen[expression] = true;
+                    predicates[count++] = expression;
+                }
+            }
+        }
+
+        predicates = Arrays.copyOf(predicates, count);
+        Arrays.sort(predicates);
+        return predicates;
+    }
+
+    /**
+     * A set of NFA configurations closed under epsilon transitions.  A
+     * closure accepts if a configuration of the end state is in the set.
+     */
+    private static final class Closure {
+        final int[] states;
+        final boolean accepting;
+        private final int hash;
+
+        /**
+         * 0 if not yet computed, 1 if the closure does not accept at the end
+         * of the tokens, 2 if it does.
+         */
+        byte acceptsAtEnd;
+
+        final DfaState[] variants = new DfaState[3];
+
+        Closure(int[] states, boolean accepting) {
+            this.states = states;
+            this.accepting = accepting;
+            this.hash = Arrays.hashCode(states);
+        }
+
+        boolean isEmpty() {
+            return this.states.length == 0;
+        }
+
+        void clear() {
+            Arrays.fill(this.variants, null);
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            return other instanceof Closure
+                && Arrays.equals(this.states, ((Closure) other).states);
+        }
+
+        @Override
+        public int hashCode() {
+            return this.hash;
+        }
+    }
+
+    /**
+     * A state of the DFA: the closure of the threads that have consumed
+     * tokens together with the thread (if any) that starts at the present
+     * position.
+     */
+    private static final class DfaState {
+        final Closure closure;
+        final int variant;
+
+        /**
+         * The expressions to evaluate against the next token.  Bit
+         * {@code i} of a truth vector is the value of
+         * {@code predicates[i]}.
+         */
+        final int[] predicates;
+
+        private Closure[] table;
+        private Map<Object, Closure> map;
+
+        DfaState(Closure closure, int variant, int[] predicates) {
+            this.closure = closure;
+            this.variant = variant;
+            this.predicates = predicates;
+        }
+
+        Closure transition(long bits, long[] signature) {
+            if (this.predicates.length <= MAX_TABLE_PREDICATES) {
+                return this.table == null ? null : this.table[(int) bits];
+            }
+            else if (this.map == null) {
+                return null;
+            }
+            else {
+                return this.map.get(key(bits, signature));
+            }
+        }
+
+        void cache(long bits, long[] signature, Closure next) {
+            if (this.predicates.length <= MAX_TABLE_PREDICATES) {
+                if (this.table == null) {
+                    this.table = new Closure[1 << this.predicates.length];
+                }
+                this.table[(int) bits] = next;
+            }
+            else {
+                if (this.map == null) {
+                    this.map = new HashMap<Object, Closure>();
+                }
+                this.map.put(key(bits, signature), next);
+            }
+        }
+
+        void clear() {
+            this.table = null;
+            this.map = null;
+        }
+
+        private Object key(long bits, long[] signature) {
+            if (signature == null) {
+                return bits;
+            }
+            else {
+                return new Signature(signature);
+            }
+        }
+    }
+
+    /**
+     * A truth vector over more than 64 predicates.
+     */
+    private static final class Signature {
+        private final long[] bits;
+
+        Signature(long[] bits) {
+            this.bits = bits;
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            return other instanceof Signature
+                && Arrays.equals(this.bits, ((Signature) other).bits);
+        }
+
+        @Override
+        public int hashCode() {
+            return Arrays.hashCode(this.bits);
+        }
+    }
+}
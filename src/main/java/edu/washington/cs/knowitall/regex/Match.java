@@ -4,10 +4,12 @@ import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Collection;
 import java.util.List;
+import java.util.Map;
 
-import com.google.common.base.Function;
 import com.google.common.base.Functions;
 import com.google.common.base.Joiner;
+import com.google.common.base.Supplier;
+import com.google.common.base.Suppliers;
 import com.google.common.collect.Lists;
 
 import edu.washington.cs.knowitall.regex.Expression.BaseExpression;
@@ -31,7 +33,7 @@ public abstract class Match<E> {
     protected Match(Match<E> match) {
         this();
         for (Group<E> pair : match.pairs) {
-            this.add(new Group<E>(pair.expr, pair.tokens));
+            this.add(new Group<E>(pair));
         }
     }
 
@@ -116,6 +118,65 @@ public abstract class Match<E> {
         return this.tokens().size();
     }
 
+    /**
+     * Retrieve a group by number.  Group 0 is the whole match and the
+     * other capturing groups are numbered from left to right in the
+     * expression, see {@link RegularExpression#groupIndex()}.
+     * @param index the number of the group to retrieve.
+     * @return the associated group, or null if it did not participate in
+     * the match.
+     */
+    public Group<E> group(int index) {
+        List<Group<E>> groups = this.groups();
+        if (groups.isEmpty()) {
+            return null;
+        }
+
+        // number the groups in the expression of the whole match
+        List<Expression<E>> numbered = new ArrayList<Expression<E>>();
+        Match.numberGroups(groups.get(0).expr, numbered);
+        Expression<E> expr = numbered.get(index);
+        for (Group<E> group : groups) {
+            if (group.expr == expr) {
+                return group;
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * Add the capturing groups in {@code expr} to {@code numbered} from
+     * left to right, each before the groups it contains.
+     */
+    private static <E> void numberGroups(Expression<E> expr, List<Expression<E>> numbered) {
+        if (expr instanceof Expression.MatchingGroup<?>) {
+            if (!(expr instanceof Expression.NonMatchingGroup<?>)) {
+                numbered.add(expr);
+            }
+            for (Expression<E> child : ((Expression.MatchingGroup<E>) expr).expressions) {
+                Match.numberGroups(child, numbered);
+            }
+        }
+        else if (expr instanceof Expression.Or<?>) {
+            // the parser puts the left alternative second
+            Match.numberGroups(((Expression.Or<E>) expr).expr2, numbered);
+            Match.numberGroups(((Expression.Or<E>) expr).expr1, numbered);
+        }
+        else if (expr instanceof Expression.Star<?>) {
+            Match.numberGroups(((Expression.Star<E>) expr).expr, numbered);
+        }
+        else if (expr instanceof Expression.Plus<?>) {
+            Match.numberGroups(((Expression.Plus<E>) expr).expr, numbered);
+        }
+        else if (expr instanceof Expression.Option<?>) {
+            Match.numberGroups(((Expression.Option<E>) expr).expr, numbered);
+        }
+        else if (expr instanceof Expression.MinMax<?>) {
+            Match.numberGroups(((Expression.MinMax<E>) expr).expr, numbered);
+        }
+    }
+
     /**
      * Retrieve a group by name.
      * @param name the name of the group to retrieve.
@@ -136,20 +197,141 @@ public abstract class Match<E> {
 
     /**
      * A match representation that has efficient method calls but is immutable.
+     *
+     * A match found by capturing the groups directly only records where it
+     * begins and ends.  Its tokens, groups and pairs are computed when they
+     * are first needed, the pairs by retracing the match.  They are views
+     * of a copy of the tokens of the match, taken when it was found, so
+     * the match does not change if the tokens searched do.
      * @author Michael Schmitz <schmmd@cs.washington.edu>
      *
      * @param <E>
      */
     protected final static class FinalMatch<E> extends Match<E> {
         private final int startIndex;
-        private final List<E> tokens;
-        private final List<Group<E>> groups;
+        private final int endIndex;
+        private final Supplier<List<E>> tokens;
+        private final Supplier<List<Group<E>>> groups;
+
+        /**
+         * The groups by number (null if they did not participate) and the
+         * number of each named group.
+         */
+        private final Supplier<List<Group<E>>> indexedGroups;
+        private final Map<String, Integer> groupIndex;
+
+        /**
+         * Computes the pairs, or null once they are computed.
+         */
+        private Supplier<List<Group<E>>> pairsSupplier;
 
-        protected FinalMatch(Match<E> m) {
+        /**
+         * @param groups the matching groups of {@code m}.
+         * @param indexedGroups the groups by number.
+         * @param groupIndex the number of each named group.
+         */
+        protected FinalMatch(Match<E> m, List<Group<E>> groups,
+                List<Group<E>> indexedGroups, Map<String, Integer> groupIndex) {
             super(m);
+            List<E> tokens = Collections.unmodifiableList(m.tokens());
             this.startIndex = m.startIndex();
-            this.tokens = Collections.unmodifiableList(m.tokens());
-            this.groups = Collections.unmodifiableList(m.groups());
+            this.endIndex = this.startIndex + tokens.size();
+            this.tokens = Suppliers.ofInstance(tokens);
+            this.groups = Suppliers.ofInstance(Collections.unmodifiableList(groups));
+            this.indexedGroups = Suppliers.ofInstance(indexedGroups);
+            this.groupIndex = groupIndex;
+        }
+
+        /**
+         * @param source the tokens the match was found in, or a copy of
+         * those of the match that is indexed like them.
+         * @param indexedGroupsSupplier computes the groups by number when
+         * they are needed.  The groups that participated must be in the
+         * order they matched.
+         * @param groupIndex the number of each named group.
+         * @param pairsSupplier computes the pairs when they are needed.
+         */
+        protected FinalMatch(final List<E> source, final int startIndex, final int endIndex,
+                Supplier<List<Group<E>>> indexedGroupsSupplier, Map<String, Integer> groupIndex,
+                Supplier<List<Group<E>>> pairsSupplier) {
+            super();
+            this.startIndex = startIndex;
+            this.endIndex = endIndex;
+            this.tokens = Suppliers.memoize(new Supplier<List<E>>() {
+                public List<E> get() {
+                    return Collections.unmodifiableList(source.subList(startIndex, endIndex));
+                }
+            });
+            this.indexedGroups = Suppliers.memoize(indexedGroupsSupplier);
+            this.groups = Suppliers.memoize(new Supplier<List<Group<E>>>() {
+                public List<Group<E>> get() {
+                    List<Group<E>> groups = new ArrayList<Group<E>>();
+                    for (Group<E> group : indexedGroups.get()) {
+                        if (group != null) {
+                            groups.add(group);
+                        }
+                    }
+
+                    return Collections.unmodifiableList(groups);
+                }
+            });
+            this.groupIndex = groupIndex;
+            this.pairsSupplier = pairsSupplier;
+        }
+
+        @Override
+        public Group<E> group(int index) {
+            return this.indexedGroups.get().get(index);
+        }
+
+        @Override
+        public Group<E> group(String name) {
+            Integer index = this.groupIndex.get(name);
+            if (index == null) {
+                return super.group(name);
+            }
+
+            return this.group(index);
+        }
+
+        private synchronized void computePairs() {
+            if (this.pairsSupplier != null) {
+                this.pairs.addAll(this.pairsSupplier.get());
+                this.pairsSupplier = null;
+            }
+        }
+
+        @Override
+        public List<Group<E>> pairs() {
+            this.computePairs();
+            return super.pairs();
+        }
+
+        /**
+         * True iff the match has no tokens.  Every match has a pair for
+         * group 0, so this is answered from the span without computing
+         * the pairs.
+         */
+        @Override
+        public boolean isEmpty() {
+            return this.endIndex == this.startIndex;
+        }
+
+        @Override
+        public String toString() {
+            this.computePairs();
+            return super.toString();
+        }
+
+        @Override
+        public String toMultilineString() {
+            this.computePairs();
+            return super.toMultilineString();
+        }
+
+        @Override
+        public int length() {
+            return this.endIndex - this.startIndex;
         }
 
         public int startIndex() {
@@ -157,16 +339,16 @@ public abstract class Match<E> {
         }
 
         public int endIndex() {
-            return this.startIndex() + this.tokens.size();
+            return this.endIndex;
         }
 
         public List<E> tokens() {
-            return this.tokens;
+            return this.tokens.get();
         }
 
         @Override
         public List<Match.Group<E>> groups() {
-            return this.groups;
+            return this.groups.get();
         }
     }
 
@@ -212,7 +394,7 @@ public abstract class Match<E> {
         public int startIndex() {
             for (Match.Group<E> pair : this.pairs) {
                 if (pair.expr instanceof Expression.BaseExpression<?>) {
-                    return pair.tokens.get(0).index;
+                    return pair.startIndex();
                 }
             }
 
@@ -223,7 +405,7 @@ public abstract class Match<E> {
         public int endIndex() {
             for (Match.Group<E> pair : Lists.reverse(this.pairs)) {
                 if (pair.expr instanceof Expression.BaseExpression<?>) {
-                    return pair.tokens.get(0).index;
+                    return pair.startIndex();
                 }
             }
 
@@ -238,6 +420,11 @@ public abstract class Match<E> {
      * @param <E>
      */
     public static class Group<E> {
+        /**
+         * @deprecated groups are ranges of the tokens searched and no
+         * longer keep a token per index.
+         */
+        @Deprecated
         private static class Token<E> {
             public E entity;
             public int index;
@@ -253,66 +440,125 @@ public abstract class Match<E> {
         }
 
         public final Expression<E> expr;
-        private final List<Token<E>> tokens;
+
+        /**
+         * The tokens are {@code source[offset, offset + length)} and the
+         * first of them is at {@code startIndex}.  Groups found by the
+         * regular expression are views of a copy of the tokens searched
+         * that is indexed like them, so {@code offset == startIndex}.
+         */
+        private List<E> source;
+        private int offset;
+        private int startIndex;
+        private int length;
 
         public Group(Expression<E> expr, E token, int pos) {
-            this(expr, Collections.singletonList(new Token<E>(token, pos)));
+            this(expr, Collections.singletonList(token), 0, pos, 1);
+        }
+
+        public Group(Expression<E> expr) {
+            this(expr, Collections.<E>emptyList(), 0, -1, 0);
         }
 
+        /**
+         * @deprecated the tokens are taken to be consecutive, starting at
+         * the least index.
+         */
+        @Deprecated
         public Group(Expression<E> expr, List<Token<E>> tokens) {
+            this(expr, entities(tokens), 0, startIndex(tokens), tokens.size());
+        }
+
+        /**
+         * A group of the tokens from {@code startIndex} (inclusive) to
+         * {@code endIndex} (exclusive) of {@code source}.
+         */
+        protected Group(Expression<E> expr, List<E> source, int startIndex, int endIndex) {
+            this(expr, source, startIndex, endIndex > startIndex ? startIndex : -1,
+                 endIndex - startIndex);
+        }
+
+        private Group(Expression<E> expr, List<E> source, int offset, int startIndex, int length) {
             this.expr = expr;
-            this.tokens = new ArrayList<Token<E>>(tokens);
+            this.source = source;
+            this.offset = offset;
+            this.startIndex = startIndex;
+            this.length = length;
         }
 
-        public Group(Expression<E> expr) {
-            this(expr, new ArrayList<Token<E>>());
+        private Group(Group<E> group) {
+            this(group.expr, group.source, group.offset, group.startIndex, group.length);
+        }
+
+        @Deprecated
+        private static <E> List<E> entities(List<Token<E>> tokens) {
+            List<E> entities = new ArrayList<E>(tokens.size());
+            for (Token<E> token : tokens) {
+                entities.add(token.entity);
+            }
+
+            return entities;
+        }
+
+        @Deprecated
+        private static <E> int startIndex(List<Token<E>> tokens) {
+            int min = -1;
+            for (Token<E> token : tokens) {
+                if (min == -1 || token.index < min)
+                    min = token.index;
+            }
+
+            return min;
         }
 
         /**
-         * Add tokens to the group.
+         * Add tokens to the group.  The tokens must follow those already in
+         * the group.
          * @param group
          */
         protected void addTokens(Group<E> group) {
-            this.tokens.addAll(group.tokens);
+            if (group.length == 0) {
+                return;
+            }
+            else if (this.length == 0) {
+                this.source = group.source;
+                this.offset = group.offset;
+                this.startIndex = group.startIndex;
+                this.length = group.length;
+            }
+            else if (group.source == this.source && group.offset == this.offset + this.length) {
+                this.length += group.length;
+            }
+            else {
+                List<E> tokens = new ArrayList<E>(this.length + group.length);
+                tokens.addAll(this.tokens());
+                tokens.addAll(group.tokens());
+                this.source = tokens;
+                this.offset = 0;
+                this.length = tokens.size();
+            }
         }
 
         /**
          * @return the tokens matched.
          */
         public List<E> tokens() {
-            return Lists.transform(this.tokens,
-                    new Function<Match.Group.Token<E>, E>() {
-                        @Override
-                        public E apply(Match.Group.Token<E> token) {
-                            return token.entity;
-                        }
-                    });
+            return Collections.unmodifiableList(
+                    this.source.subList(this.offset, this.offset + this.length));
         }
 
         /**
          * @return the index of the first token in this group or -1
          */
         public int startIndex() {
-            int min = -1;
-            for (Token<E> token : this.tokens) {
-                if (min == -1 || token.index < min)
-                    min = token.index;
-            }
-
-            return min;
+            return this.startIndex;
         }
 
         /**
          * @return the index of the last token in this group or -1
          */
         public int endIndex() {
-            int max = -1;
-            for (Token<E> token : this.tokens) {
-                if (token.index == -1 || token.index > max)
-                    max = token.index;
-            }
-
-            return max;
+            return this.length == 0 ? -1 : this.startIndex + this.length - 1;
         }
 
         /**
@@ -327,16 +573,12 @@ public abstract class Match<E> {
          * @return the number of tokens matched.
          */
         public int tokenCount() {
-            return this.tokens.size();
+            return this.length;
         }
 
         @Override
         public String toString() {
-            return expr.toString()
-                    + ":'"
-                    + Joiner.on(" ").join(
-                            Lists.transform(this.tokens,
-                                    Functions.toStringFunction())) + "'";
+            return expr.toString() + ":'" + this.text() + "'";
         }
     }
 }
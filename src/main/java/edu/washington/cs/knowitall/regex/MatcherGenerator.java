@@ -0,0 +1,576 @@
+package edu.washington.cs.knowitall.regex;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.reflect.Array;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.google.common.base.Predicate;
+
+/**
+ * Generates a class that runs a {@link ShiftAnd} with its masks as
+ * constants and a call to each of its expressions in straight-line code,
+ * instead of reading the masks from arrays and applying the expressions
+ * through one shared call site.  Each generated class has its own call
+ * sites, so the JIT sees a single expression at each and can inline it.
+ *
+ * The class is written directly as a class file of the oldest version
+ * that needs no stack map frames, and defined in this package as a hidden
+ * class with {@code MethodHandles.Lookup.defineHiddenClass}, which is
+ * unloaded once the matcher that uses it is unreachable.  That method was
+ * added in Java 15; from Java 9 the class is defined with
+ * {@code MethodHandles.Lookup.defineClass} instead, and stays loaded.  Both
+ * are looked up reflectively, so on an older JVM, or if the class is
+ * rejected, nothing is generated and the {@link ShiftAnd} runs as it is.
+ * The reason is logged.
+ */
+final class MatcherGenerator {
+    private static final String PACKAGE = "edu/washington/cs/knowitall/regex/";
+    private static final String SUPER = PACKAGE + "ShiftAnd$Compiled";
+    private static final String LIST = "java/util/List";
+    private static final String PREDICATE = "com/google/common/base/Predicate";
+
+    /**
+     * Numbers the generated classes, whose names must differ.
+     */
+    private static final AtomicInteger classCount = new AtomicInteger();
+
+    private static final Logger logger = Logger.getLogger(MatcherGenerator.class.getName());
+
+    // the local variables of the generated method
+    private static final int THIS = 0;
+    private static final int TOKENS = 1;
+    private static final int START_INDEX = 2;
+    private static final int LAST_START = 3;
+    private static final int WHOLE = 4;
+    private static final int SIZE = 5;
+    private static final int ACTIVE = 6;
+    private static final int INDEX = 8;
+    private static final int TOKEN = 9;
+    private static final int CANDIDATES = 10;
+    private static final int NEXT = 12;
+    private static final int LOCALS = 14;
+
+    private MatcherGenerator() {
+    }
+
+    /**
+     * @return a generated matcher that behaves like {@code shiftAnd}, or
+     * null if none could be generated.
+     */
+    static ShiftAnd.Compiled generate(ShiftAnd<?> shiftAnd) {
+        // the distinct expressions and the positions of each
+        List<Integer> expressions = new ArrayList<Integer>();
+        List<Long> masks = new ArrayList<Long>();
+        for (int bit = 0; bit < shiftAnd.expressions.length; bit++) {
+            int expression = shiftAnd.expressions[bit];
+            if (expression >= 0 && !expressions.contains(expression)) {
+                expressions.add(expression);
+                masks.add(shiftAnd.expressionMasks[bit]);
+            }
+        }
+
+        Predicate<?>[] predicates = new Predicate<?>[expressions.size()];
+        for (int i = 0; i < predicates.length; i++) {
+            predicates[i] = shiftAnd.nfa.expressions[expressions.get(i)];
+        }
+
+        String name = PACKAGE + "GeneratedMatcher$" + classCount.incrementAndGet();
+        try {
+            byte[] bytes = new MatcherGenerator.ClassWriter(name)
+                .write(shiftAnd, masks, predicates.length);
+
+            Class<?> generated = MatcherGenerator.define(bytes);
+            return (ShiftAnd.Compiled) generated.getDeclaredConstructor(Predicate[].class)
+                .newInstance((Object) predicates);
+        }
+        catch (NoSuchMethodException e) {
+            logger.log(Level.FINE, "this JVM cannot define a matcher class", e);
+            return null;
+        }
+        catch (InvocationTargetException e) {
+            logger.log(Level.WARNING, "could not define a matcher class", e.getCause());
+            return null;
+        }
+        catch (Exception e) {
+            logger.log(Level.WARNING, "could not generate a matcher", e);
+            return null;
+        }
+        catch (LinkageError e) {
+            logger.log(Level.WARNING, "the generated matcher was rejected", e);
+            return null;
+        }
+    }
+
+    /**
+     * Define a class in this package, as a hidden class if the JVM has
+     * them.
+     */
+    private static Class<?> define(byte[] bytes) throws Exception {
+        MethodHandles.Lookup lookup = MethodHandles.lookup();
+        Class<?> option;
+        try {
+            option = Class.forName("java.lang.invoke.MethodHandles$Lookup$ClassOption");
+        }
+        catch (ClassNotFoundException e) {
+            Method defineClass = MethodHandles.Lookup.class.getMethod("defineClass", byte[].class);
+            return (Class<?>) defineClass.invoke(lookup, bytes);
+        }
+
+        Object options = Array.newInstance(option, 0);
+        Method defineHiddenClass = MethodHandles.Lookup.class.getMethod("defineHiddenClass",
+                byte[].class, boolean.class, options.getClass());
+        MethodHandles.Lookup hidden =
+            (MethodHandles.Lookup) defineHiddenClass.invoke(lookup, bytes, true, options);
+        return hidden.lookupClass();
+    }
+
+    /**
+     * Writes the class file of a matcher.  The generated method is
+     * {@link ShiftAnd#firstEnd(List, int, int)} with the loops over the
+     * irregular positions and the expressions unrolled.
+     */
+    private static class ClassWriter {
+        private final String name;
+
+        private final ByteArrayOutputStream pool = new ByteArrayOutputStream();
+        private final DataOutputStream poolOut = new DataOutputStream(this.pool);
+        private final Map<String, Integer> constants = new HashMap<String, Integer>();
+        private int constantCount = 1;
+
+        public ClassWriter(String name) {
+            this.name = name;
+        }
+
+        public byte[] write(ShiftAnd<?> shiftAnd, List<Long> masks, int fieldCount)
+                throws IOException {
+            int thisClass = this.classConstant(this.name);
+            int superClass = this.classConstant(SUPER);
+            int predicateType = this.utf8("L" + PREDICATE + ";");
+            int[] fields = new int[fieldCount];
+            for (int i = 0; i < fieldCount; i++) {
+                fields[i] = this.member(9, this.name, "e" + i, "L" + PREDICATE + ";");
+            }
+
+            byte[] constructor = this.constructor(fields);
+            byte[] firstEnd = this.firstEnd(shiftAnd, masks, fields);
+
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+            int code = this.utf8("Code");
+            int init = this.utf8("<init>");
+            int initType = this.utf8("([L" + PREDICATE + ";)V");
+            int firstEndName = this.utf8("firstEnd");
+            int firstEndType = this.utf8("(L" + LIST + ";IIZ)I");
+
+            out.writeInt(0xCAFEBABE);
+            out.writeShort(0);
+            out.writeShort(49);
+            out.writeShort(this.constantCount);
+            this.poolOut.flush();
+            this.pool.writeTo(out);
+
+            // final, super
+            out.writeShort(0x0030);
+            out.writeShort(thisClass);
+            out.writeShort(superClass);
+            out.writeShort(0);
+
+            out.writeShort(fieldCount);
+            for (int i = 0; i < fieldCount; i++) {
+                // private, final
+                out.writeShort(0x0012);
+                out.writeShort(this.utf8("e" + i));
+                out.writeShort(predicateType);
+                out.writeShort(0);
+            }
+
+            out.writeShort(2);
+            this.method(out, init, initType, code, 3, 2, constructor);
+            this.method(out, firstEndName, firstEndType, code, 8, LOCALS, firstEnd);
+            out.writeShort(0);
+
+            out.flush();
+            return bytes.toByteArray();
+        }
+
+        private void method(DataOutputStream out, int name, int type, int code,
+                int maxStack, int maxLocals, byte[] bytecode) throws IOException {
+            out.writeShort(0);
+            out.writeShort(name);
+            out.writeShort(type);
+            out.writeShort(1);
+            out.writeShort(code);
+            out.writeInt(12 + bytecode.length);
+            out.writeShort(maxStack);
+            out.writeShort(maxLocals);
+            out.writeInt(bytecode.length);
+            out.write(bytecode);
+            out.writeShort(0);
+            out.writeShort(0);
+        }
+
+        /**
+         * Store the predicates passed in an array in the fields.
+         */
+        private byte[] constructor(int[] fields) throws IOException {
+            Code code = new Code();
+            code.op(Code.ALOAD, THIS);
+            code.op(Code.INVOKESPECIAL);
+            code.u2(this.member(10, SUPER, "<init>", "()V"));
+            for (int i = 0; i < fields.length; i++) {
+                code.op(Code.ALOAD, THIS);
+                code.op(Code.ALOAD, 1);
+                code.op(Code.SIPUSH);
+                code.u2(i);
+                code.op(Code.AALOAD);
+                code.op(Code.PUTFIELD);
+                code.u2(fields[i]);
+            }
+            code.op(Code.RETURN);
+
+            return code.toByteArray();
+        }
+
+        private byte[] firstEnd(ShiftAnd<?> shiftAnd, List<Long> masks, int[] fields)
+                throws IOException {
+            Code code = new Code();
+            int loop = code.label();
+            int notEnd = code.label();
+            int fail = code.label();
+            int step = code.label();
+            int noStart = code.label();
+            int notFirst = code.label();
+
+            // int size = tokens.size();
+            code.op(Code.ALOAD, TOKENS);
+            code.invokeInterface(this.member(11, LIST, "size", "()I"), 1);
+            code.op(Code.ISTORE, SIZE);
+
+            // if (startIndex > lastStart) return -1;
+            code.op(Code.ILOAD, START_INDEX);
+            code.op(Code.ILOAD, LAST_START);
+            code.jump(Code.IF_ICMPGT, fail);
+
+            code.op(Code.LCONST_0);
+            code.op(Code.LSTORE, ACTIVE);
+            code.op(Code.ILOAD, START_INDEX);
+            code.op(Code.ISTORE, INDEX);
+
+            code.mark(loop);
+
+            // if (index == size) return (active & acceptsAtEnd) != 0 ? index : -1;
+            code.op(Code.ILOAD, INDEX);
+            code.op(Code.ILOAD, SIZE);
+            code.jump(Code.IF_ICMPNE, notEnd);
+            this.masked(code, ACTIVE, shiftAnd.acceptsAtEnd);
+            code.jump(Code.IFEQ, fail);
+            code.op(Code.ILOAD, INDEX);
+            code.op(Code.IRETURN);
+
+            // if (!whole && (active & accepts) != 0) return index;
+            code.mark(notEnd);
+            code.op(Code.ILOAD, WHOLE);
+            code.jump(Code.IFNE, step);
+            this.masked(code, ACTIVE, shiftAnd.accepts);
+            code.jump(Code.IFEQ, step);
+            code.op(Code.ILOAD, INDEX);
+            code.op(Code.IRETURN);
+
+            // Object token = tokens.get(index);
+            code.mark(step);
+            code.op(Code.ALOAD, TOKENS);
+            code.op(Code.ILOAD, INDEX);
+            code.invokeInterface(this.member(11, LIST, "get", "(I)Ljava/lang/Object;"), 2);
+            code.op(Code.ASTORE, TOKEN);
+
+            // long candidates = (active & shifts) << 1;
+            code.op(Code.LLOAD, ACTIVE);
+            this.longConstant(code, shiftAnd.shifts);
+            code.op(Code.LAND);
+            code.op(Code.ICONST_1);
+            code.op(Code.LSHL);
+            code.op(Code.LSTORE, CANDIDATES);
+
+            // if ((active & 1L << bit) != 0) candidates |= follow[bit];
+            for (int bit = 0; bit < shiftAnd.follow.length; bit++) {
+                if ((shiftAnd.irregular & (1L << bit)) != 0) {
+                    int skip = code.label();
+                    this.masked(code, ACTIVE, 1L << bit);
+                    code.jump(Code.IFEQ, skip);
+                    this.or(code, CANDIDATES, shiftAnd.follow[bit]);
+                    code.mark(skip);
+                }
+            }
+
+            // if (index <= lastStart)
+            //     candidates |= index == 0 ? firstAtStart : first;
+            code.op(Code.ILOAD, INDEX);
+            code.op(Code.ILOAD, LAST_START);
+            code.jump(Code.IF_ICMPGT, noStart);
+            code.op(Code.ILOAD, INDEX);
+            code.jump(Code.IFNE, notFirst);
+            this.or(code, CANDIDATES, shiftAnd.firstAtStart);
+            code.jump(Code.GOTO, noStart);
+            code.mark(notFirst);
+            this.or(code, CANDIDATES, shiftAnd.first);
+            code.mark(noStart);
+
+            // if ((candidates & mask) != 0 && e.apply(token))
+            //     next |= candidates & mask;
+            code.op(Code.LCONST_0);
+            code.op(Code.LSTORE, NEXT);
+            for (int i = 0; i < fields.length; i++) {
+                int skip = code.label();
+                this.masked(code, CANDIDATES, masks.get(i));
+                code.jump(Code.IFEQ, skip);
+                code.op(Code.ALOAD, THIS);
+                code.op(Code.GETFIELD);
+                code.u2(fields[i]);
+                code.op(Code.ALOAD, TOKEN);
+                code.invokeInterface(this.member(11, PREDICATE, "apply",
+                            "(Ljava/lang/Object;)Z"), 2);
+                code.jump(Code.IFEQ, skip);
+                code.op(Code.LLOAD, NEXT);
+                code.op(Code.LLOAD, CANDIDATES);
+                this.longConstant(code, masks.get(i));
+                code.op(Code.LAND);
+                code.op(Code.LOR);
+                code.op(Code.LSTORE, NEXT);
+                code.mark(skip);
+            }
+
+            // active = next; index++;
+            code.op(Code.LLOAD, NEXT);
+            code.op(Code.LSTORE, ACTIVE);
+            code.op(Code.IINC);
+            code.u1(INDEX);
+            code.u1(1);
+
+            // if (active != 0 || index <= lastStart) continue;
+            code.op(Code.LLOAD, ACTIVE);
+            code.op(Code.LCONST_0);
+            code.op(Code.LCMP);
+            code.jump(Code.IFNE, loop);
+            code.op(Code.ILOAD, INDEX);
+            code.op(Code.ILOAD, LAST_START);
+            code.jump(Code.IF_ICMPLE, loop);
+
+            code.mark(fail);
+            code.op(Code.ICONST_M1);
+            code.op(Code.IRETURN);
+
+            return code.toByteArray();
+        }
+
+        /**
+         * Compare {@code local & mask} to 0, leaving the result of
+         * {@code lcmp}.
+         */
+        private void masked(Code code, int local, long mask) throws IOException {
+            code.op(Code.LLOAD, local);
+            this.longConstant(code, mask);
+            code.op(Code.LAND);
+            code.op(Code.LCONST_0);
+            code.op(Code.LCMP);
+        }
+
+        /**
+         * {@code local |= mask}
+         */
+        private void or(Code code, int local, long mask) throws IOException {
+            code.op(Code.LLOAD, local);
+            this.longConstant(code, mask);
+            code.op(Code.LOR);
+            code.op(Code.LSTORE, local);
+        }
+
+        private void longConstant(Code code, long value) throws IOException {
+            code.op(Code.LDC2_W);
+            code.u2(this.longConstant(value));
+        }
+
+        private int utf8(String value) throws IOException {
+            Integer index = this.constants.get("U" + value);
+            if (index == null) {
+                index = this.constantCount++;
+                this.poolOut.writeByte(1);
+                this.poolOut.writeUTF(value);
+                this.constants.put("U" + value, index);
+            }
+
+            return index;
+        }
+
+        private int classConstant(String name) throws IOException {
+            int utf8 = this.utf8(name);
+            Integer index = this.constants.get("C" + name);
+            if (index == null) {
+                index = this.constantCount++;
+                this.poolOut.writeByte(7);
+                this.poolOut.writeShort(utf8);
+                this.constants.put("C" + name, index);
+            }
+
+            return index;
+        }
+
+        /**
+         * @param tag the tag of a field, method or interface method
+         * reference.
+         */
+        private int member(int tag, String owner, String name, String type) throws IOException {
+            String key = tag + owner + "." + name + type;
+            Integer index = this.constants.get(key);
+            if (index == null) {
+                int ownerClass = this.classConstant(owner);
+                int nameUtf8 = this.utf8(name);
+                int typeUtf8 = this.utf8(type);
+                int nameAndType = this.constantCount++;
+                this.poolOut.writeByte(12);
+                this.poolOut.writeShort(nameUtf8);
+                this.poolOut.writeShort(typeUtf8);
+
+                index = this.constantCount++;
+                this.poolOut.writeByte(tag);
+                this.poolOut.writeShort(ownerClass);
+                this.poolOut.writeShort(nameAndType);
+                this.constants.put(key, index);
+            }
+
+            return index;
+        }
+
+        private int longConstant(long value) throws IOException {
+            Integer index = this.constants.get("J" + value);
+            if (index == null) {
+                // a long takes two entries
+                index = this.constantCount;
+                this.constantCount += 2;
+                this.poolOut.writeByte(5);
+                this.poolOut.writeLong(value);
+                this.constants.put("J" + value, index);
+            }
+
+            return index;
+        }
+    }
+
+    /**
+     * The bytecode of a method, with labels for the branches.
+     */
+    private static class Code {
+        static final int ICONST_M1 = 0x02;
+        static final int ICONST_1 = 0x04;
+        static final int LCONST_0 = 0x09;
+        static final int SIPUSH = 0x11;
+        static final int LDC2_W = 0x14;
+        static final int ILOAD = 0x15;
+        static final int LLOAD = 0x16;
+        static final int ALOAD = 0x19;
+        static final int AALOAD = 0x32;
+        static final int ISTORE = 0x36;
+        static final int LSTORE = 0x37;
+        static final int ASTORE = 0x3a;
+        static final int LAND = 0x7f;
+        static final int LOR = 0x81;
+        static final int LSHL = 0x79;
+        static final int IINC = 0x84;
+        static final int LCMP = 0x94;
+        static final int IFEQ = 0x99;
+        static final int IFNE = 0x9a;
+        static final int IF_ICMPNE = 0xa0;
+        static final int IF_ICMPGT = 0xa3;
+        static final int IF_ICMPLE = 0xa4;
+        static final int GOTO = 0xa7;
+        static final int IRETURN = 0xac;
+        static final int RETURN = 0xb1;
+        static final int GETFIELD = 0xb4;
+        static final int PUTFIELD = 0xb5;
+        static final int INVOKESPECIAL = 0xb7;
+        static final int INVOKEINTERFACE = 0xb9;
+
+        private final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+
+        /**
+         * The offset of each label, or -1 if it is not yet marked, and the
+         * branches to patch: the offset of each branch instruction and its
+         * label.
+         */
+        private int[] labels = new int[0];
+        private int[] branches = new int[0];
+
+        public void op(int opcode) {
+            this.bytes.write(opcode);
+        }
+
+        /**
+         * An instruction on a local variable.
+         */
+        public void op(int opcode, int local) {
+            this.bytes.write(opcode);
+            this.bytes.write(local);
+        }
+
+        public void u1(int value) {
+            this.bytes.write(value);
+        }
+
+        public void u2(int value) {
+            this.bytes.write(value >>> 8);
+            this.bytes.write(value);
+        }
+
+        public void invokeInterface(int method, int argumentSlots) {
+            this.op(INVOKEINTERFACE);
+            this.u2(method);
+            this.u1(argumentSlots);
+            this.u1(0);
+        }
+
+        public int label() {
+            this.labels = Arrays.copyOf(this.labels, this.labels.length + 1);
+            this.labels[this.labels.length - 1] = -1;
+            return this.labels.length - 1;
+        }
+
+        public void mark(int label) {
+            this.labels[label] = this.bytes.size();
+        }
+
+        public void jump(int opcode, int label) {
+            this.branches = Arrays.copyOf(this.branches, this.branches.length + 2);
+            this.branches[this.branches.length - 2] = this.bytes.size();
+            this.branches[this.branches.length - 1] = label;
+            this.op(opcode);
+            this.u2(0);
+        }
+
+        public byte[] toByteArray() {
+            byte[] code = this.bytes.toByteArray();
+            for (int i = 0; i < this.branches.length; i += 2) {
+                int at = this.branches[i];
+                int offset = this.labels[this.branches[i + 1]] - at;
+                if (offset != (short) offset) {
+                    throw new IllegalStateException("method too large");
+                }
+
+                code[at + 1] = (byte) (offset >>> 8);
+                code[at + 2] = (byte) offset;
+            }
+
+            return code;
+        }
+    }
+}
@@ -0,0 +1,349 @@
+package edu.washington.cs.knowitall.regex;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A single-thread run of a {@link CompiledAutomaton} whose path through
+ * the epsilon transitions is never in doubt.  Like a
+ * {@link GlushkovAutomaton}, it steps from one position (a state a token
+ * leads to) to the next, but each transition also carries the group
+ * boundaries passed on the way, so the groups are tracked in one array of
+ * slots as in the {@link PikeVm}, with no set of threads.
+ *
+ * An automaton is one-pass if from each position there is only one path
+ * to each edge that consumes a token and to the end state, and the edges
+ * out of a position have different expressions.  Whether two expressions
+ * apply to the same token is only known when they are applied, so if
+ * more than one transition applies the run stops and the match is left to
+ * the {@link PikeVm}.  Otherwise there is a single path through the NFA
+ * from the start of a match to each of its possible ends, so the match
+ * and its groups are those the {@link PikeVm} finds.
+ *
+ * An unanchored search runs from each start in turn, which is quadratic
+ * in the worst case, so it also stops once it has taken a few steps per
+ * token.
+ *
+ * A one-pass run is not modified after it is built, so it may be shared
+ * between threads.
+ *
+ * @param <E>
+ */
+class OnePass<E> {
+    /**
+     * The result of a run that stopped without an answer.
+     */
+    static final int[] UNDECIDED = new int[0];
+
+    /**
+     * The steps an unanchored search may take per token, beyond a small
+     * constant.
+     */
+    private static final int STEPS_PER_TOKEN = 4;
+    private static final int EXTRA_STEPS = 64;
+
+    private final CompiledAutomaton<E> nfa;
+
+    /**
+     * The transitions out of each position, as in
+     * {@link GlushkovAutomaton}, and the slots each sets to the present
+     * index, from {@code effectOffsets[t]} to {@code effectOffsets[t + 1]}
+     * of {@code effects}.
+     */
+    private final int[] offsets;
+    private final int[] targets;
+    private final int[] expressions;
+    private final byte[] conditions;
+    private final int[] effectOffsets;
+
+    /**
+     * The condition under which each position accepts, or -1, and the
+     * slots set on the way to the end state, likewise from
+     * {@code acceptEffectOffsets[p]} to {@code acceptEffectOffsets[p + 1]}.
+     */
+    private final byte[] acceptConditions;
+    private final int[] acceptEffectOffsets;
+
+    private final int[] effects;
+
+    private OnePass(CompiledAutomaton<E> nfa, int[] offsets, int[] targets, int[] expressions,
+            byte[] conditions, int[] effectOffsets, byte[] acceptConditions,
+            int[] acceptEffectOffsets, int[] effects) {
+        this.nfa = nfa;
+        this.offsets = offsets;
+        this.targets = targets;
+        this.expressions = expressions;
+        this.conditions = conditions;
+        this.effectOffsets = effectOffsets;
+        this.acceptConditions = acceptConditions;
+        this.acceptEffectOffsets = acceptEffectOffsets;
+        this.effects = effects;
+    }
+
+    /**
+     * @return a one-pass run of {@code nfa}, or null if it is not
+     * one-pass, has counters, groups that repeat, more than one pattern,
+     * or an assertion other than {@code ^} and {@code $}.
+     */
+    static <E> OnePass<E> build(CompiledAutomaton<E> nfa) {
+        byte[] assertionConditions = GlushkovAutomaton.assertionConditions(nfa);
+        if (nfa.counters.length > 0 || nfa.repeatedGroups || nfa.end < 0
+                || assertionConditions == null) {
+            return null;
+        }
+
+        // number the start state and the states a token leads to
+        int stateCount = nfa.stateCount();
+        int[] positions = new int[stateCount];
+        Arrays.fill(positions, -1);
+        int[] states = new int[stateCount];
+        int positionCount = 0;
+        positions[nfa.start] = positionCount;
+        states[positionCount++] = nfa.start;
+        for (int e = 0; e < nfa.edgeTargets.length; e++) {
+            int dest = nfa.edgeTargets[e];
+            if (!nfa.assertions[nfa.edgeExpressions[e]] && positions[dest] < 0) {
+                positions[dest] = positionCount;
+                states[positionCount++] = dest;
+            }
+        }
+
+        int[] offsets = new int[positionCount + 1];
+        int[] targets = new int[16];
+        int[] expressions = new int[16];
+        byte[] conditions = new byte[16];
+        int[] effectOffsets = new int[17];
+        int transitionCount = 0;
+        byte[] acceptConditions = new byte[positionCount];
+        Arrays.fill(acceptConditions, (byte) -1);
+        int[] acceptEffectOffsets = new int[positionCount + 1];
+        int[] acceptEffects = new int[16];
+        int acceptEffectCount = 0;
+        int[] effects = new int[16];
+        int effectCount = 0;
+
+        // the paths from a position form a tree; each state records the
+        // state it was reached from and the assertions passed
+        int[] visited = new int[stateCount];
+        int[] parents = new int[stateCount];
+        byte[] reached = new byte[stateCount];
+        int[] stack = new int[stateCount];
+        for (int position = 0; position < positionCount; position++) {
+            offsets[position] = transitionCount;
+            acceptEffectOffsets[position] = acceptEffectCount;
+
+            // only the start position can be at the first token
+            byte possible = position == GlushkovAutomaton.START
+                ? (byte) (GlushkovAutomaton.AT_START | GlushkovAutomaton.AT_END)
+                : GlushkovAutomaton.AT_END;
+
+            int depth = 0;
+            int root = states[position];
+            visited[root] = position + 1;
+            parents[root] = -1;
+            reached[root] = GlushkovAutomaton.ANYWHERE;
+            stack[depth++] = root;
+            while (depth > 0) {
+                int state = stack[--depth];
+                byte condition = reached[state];
+
+                if (state == nfa.end && position != GlushkovAutomaton.START) {
+                    acceptConditions[position] = condition;
+                    for (int slot : OnePass.effects(nfa, parents, state)) {
+                        if (acceptEffectCount == acceptEffects.length) {
+                            acceptEffects = Arrays.copyOf(acceptEffects, 2 * acceptEffectCount);
+                        }
+                        acceptEffects[acceptEffectCount++] = slot;
+                    }
+                }
+
+                for (int e = nfa.epsilonOffsets[state]; e < nfa.epsilonOffsets[state + 1]; e++) {
+                    int dest = nfa.epsilonTargets[e];
+                    if (visited[dest] == position + 1) {
+                        return null;
+                    }
+
+                    visited[dest] = position + 1;
+                    parents[dest] = state;
+                    reached[dest] = condition;
+                    stack[depth++] = dest;
+                }
+
+                for (int e = nfa.edgeOffsets[state]; e < nfa.edgeOffsets[state + 1]; e++) {
+                    int expression = nfa.edgeExpressions[e];
+                    int dest = nfa.edgeTargets[e];
+                    if (nfa.assertions[expression]) {
+                        // pass the assertion if it can hold here
+                        if ((assertionConditions[expression] & possible) != 0) {
+                            if (visited[dest] == position + 1) {
+                                return null;
+                            }
+
+                            visited[dest] = position + 1;
+                            parents[dest] = state;
+                            reached[dest] = (byte) (condition | assertionConditions[expression]);
+                            stack[depth++] = dest;
+                        }
+                    }
+                    // no token follows the last one
+                    else if ((condition & GlushkovAutomaton.AT_END) == 0) {
+                        for (int t = offsets[position]; t < transitionCount; t++) {
+                            if (expressions[t] == expression) {
+                                return null;
+                            }
+                        }
+
+                        if (transitionCount == targets.length) {
+                            targets = Arrays.copyOf(targets, 2 * transitionCount);
+                            expressions = Arrays.copyOf(expressions, 2 * transitionCount);
+                            conditions = Arrays.copyOf(conditions, 2 * transitionCount);
+                            effectOffsets = Arrays.copyOf(effectOffsets, 2 * transitionCount + 1);
+                        }
+
+                        targets[transitionCount] = positions[dest];
+                        expressions[transitionCount] = expression;
+                        conditions[transitionCount] = condition;
+                        effectOffsets[transitionCount] = effectCount;
+                        for (int slot : OnePass.effects(nfa, parents, state)) {
+                            if (effectCount == effects.length) {
+                                effects = Arrays.copyOf(effects, 2 * effectCount);
+                            }
+                            effects[effectCount++] = slot;
+                        }
+                        transitionCount++;
+                    }
+                }
+            }
+        }
+        offsets[positionCount] = transitionCount;
+        effectOffsets[transitionCount] = effectCount;
+        acceptEffectOffsets[positionCount] = acceptEffectCount;
+
+        // keep the effects of the accepts after those of the transitions
+        int[] allEffects = Arrays.copyOf(effects, effectCount + acceptEffectCount);
+        System.arraycopy(acceptEffects, 0, allEffects, effectCount, acceptEffectCount);
+        for (int p = 0; p <= positionCount; p++) {
+            acceptEffectOffsets[p] += effectCount;
+        }
+
+        return new OnePass<E>(nfa, offsets, Arrays.copyOf(targets, transitionCount),
+                Arrays.copyOf(expressions, transitionCount),
+                Arrays.copyOf(conditions, transitionCount),
+                Arrays.copyOf(effectOffsets, transitionCount + 1), acceptConditions,
+                acceptEffectOffsets, allEffects);
+    }
+
+    /**
+     * @return the slots of the group boundaries on the path from the root
+     * to {@code state}, in order.
+     */
+    private static int[] effects(CompiledAutomaton<?> nfa, int[] parents, int state) {
+        int count = 0;
+        for (int s = state; s >= 0; s = parents[s]) {
+            if (nfa.stateGroups[s] >= 0) {
+                count++;
+            }
+        }
+
+        int[] slots = new int[count];
+        for (int s = state; s >= 0; s = parents[s]) {
+            int group = nfa.stateGroups[s];
+            if (group >= 0) {
+                slots[--count] = 2 * group + (nfa.kinds[s] == CompiledAutomaton.START ? 0 : 1);
+            }
+        }
+
+        return slots;
+    }
+
+    /**
+     * Find the longest match that begins at {@code startIndex}, reading no
+     * tokens past {@code endIndex}.
+     * @return the slots of the match, null if there is none, or
+     * {@link #UNDECIDED}.
+     */
+    int[] lookingAt(List<E> tokens, int startIndex, int endIndex) {
+        return this.run(tokens, startIndex, endIndex, new int[] { Integer.MAX_VALUE });
+    }
+
+    /**
+     * Find the first match that begins between {@code startIndex} and
+     * {@code lastStart}, trying each start in turn.
+     * @return the slots of the match, null if there is none, or
+     * {@link #UNDECIDED}.
+     */
+    int[] find(List<E> tokens, int startIndex, int lastStart) {
+        int[] budget = new int[] {
+            STEPS_PER_TOKEN * (tokens.size() - startIndex) + EXTRA_STEPS };
+        for (int start = startIndex; start <= lastStart; start++) {
+            int[] slots = this.run(tokens, start, tokens.size(), budget);
+            if (slots != null) {
+                return slots;
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * @param budget the number of steps that may be taken, which is
+     * reduced by the steps taken.
+     * @return the slots of the longest match that begins at
+     * {@code startIndex}, null if there is none, or {@link #UNDECIDED} if
+     * more than one transition applies or the budget runs out.
+     */
+    private int[] run(List<E> tokens, int startIndex, int endIndex, int[] budget) {
+        int size = tokens.size();
+        int[] slots = new int[2 * this.nfa.groups.length];
+        Arrays.fill(slots, -1);
+        int[] solution = null;
+
+        int position = GlushkovAutomaton.START;
+        for (int index = startIndex; ; index++) {
+            // can't succeed if no tokens are consumed
+            byte accept = this.acceptConditions[position];
+            if (accept >= 0 && GlushkovAutomaton.holds(accept, index, size)) {
+                solution = slots.clone();
+                this.apply(solution, this.acceptEffectOffsets[position],
+                        this.acceptEffectOffsets[position + 1], index);
+            }
+
+            if (index == endIndex) {
+                return solution;
+            }
+
+            if (--budget[0] < 0) {
+                return UNDECIDED;
+            }
+
+            E token = tokens.get(index);
+            int taken = -1;
+            for (int t = this.offsets[position]; t < this.offsets[position + 1]; t++) {
+                if (GlushkovAutomaton.holds(this.conditions[t], index, size)
+                        && this.nfa.expressions[this.expressions[t]].apply(token)) {
+                    if (taken >= 0) {
+                        return UNDECIDED;
+                    }
+                    taken = t;
+                }
+            }
+
+            if (taken < 0) {
+                return solution;
+            }
+
+            this.apply(slots, this.effectOffsets[taken], this.effectOffsets[taken + 1], index);
+            position = this.targets[taken];
+        }
+    }
+
+    /**
+     * Set the slots of the effects from {@code from} to {@code to} to
+     * {@code index}.
+     */
+    private void apply(int[] slots, int from, int to, int index) {
+        for (int i = from; i < to; i++) {
+            slots[this.effects[i]] = index;
+        }
+    }
+}
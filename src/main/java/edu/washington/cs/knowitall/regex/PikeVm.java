@@ -0,0 +1,394 @@
+package edu.washington.cs.knowitall.regex;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import com.google.common.base.Supplier;
+
+/**
+ * A Pike VM over a {@link CompiledAutomaton}.  Like the evaluation in
+ * {@link CompiledAutomaton}, it runs the NFA over the tokens one position
+ * at a time, but each thread carries the positions where the capturing
+ * groups on its path begin and end instead of a chain of steps.  The
+ * groups of a match are known as soon as its end is reached, so nothing
+ * is retraced to find them.
+ *
+ * The threads are kept in the order the evaluation in
+ * {@link CompiledAutomaton} keeps its steps, and the first thread to
+ * reach a configuration at a position takes it, so the same match is
+ * found.  The slots of a thread are shared with the threads it leads to
+ * and only copied when a group begins or ends.
+ *
+ * A match only records where it begins and ends and the slots of the
+ * thread that found it.  Its tokens and groups are computed from those
+ * when they are first needed, and its pairs by retracing the match from
+ * its start to its end.
+ *
+ * The VM can also be driven one position at a time with
+ * {@link #visit(List, int, boolean)} and {@link #step(Object, int)}, as
+ * {@link StreamingMatcher} does while tokens arrive.
+ *
+ * A VM given a {@link Budget} charges it for each token it reads and
+ * each thread it carries over a token.
+ *
+ * A VM must not be shared between threads.
+ *
+ * @param <E>
+ */
+class PikeVm<E> {
+    private final CompiledAutomaton<E> nfa;
+    private final CompiledAutomaton<E>.Evaluation evaluation;
+
+    /**
+     * The budget charged for the steps of a search, or null.
+     */
+    private final Budget budget;
+
+    /**
+     * The threads that consumed the last token, and the threads at the
+     * present position.
+     */
+    private final Threads seeds = new Threads();
+    private final Threads threads = new Threads();
+
+    /**
+     * The slots of the best match found so far, or null.
+     */
+    private int[] solution;
+
+    public PikeVm(CompiledAutomaton<E> nfa) {
+        this(nfa, null);
+    }
+
+    public PikeVm(CompiledAutomaton<E> nfa, Budget budget) {
+        this.nfa = nfa;
+        this.evaluation = nfa.new Evaluation();
+        this.budget = budget;
+    }
+
+    /**
+     * Find the match that begins at {@code startIndex}, reading no tokens
+     * past {@code endIndex}.
+     * @return null if no match, otherwise a representation of the match
+     */
+    public Match.FinalMatch<E> lookingAt(List<E> tokens, int startIndex, int endIndex) {
+        return this.run(tokens, startIndex, startIndex, endIndex);
+    }
+
+    /**
+     * Find the first match that begins between {@code startIndex} and
+     * {@code lastStart}.
+     * @return null if no match, otherwise a representation of the match
+     */
+    public Match.FinalMatch<E> find(List<E> tokens, int startIndex, int lastStart) {
+        return this.run(tokens, startIndex, lastStart, tokens.size());
+    }
+
+    /**
+     * Run the threads from {@code startIndex}, starting a new thread at each
+     * position up to {@code lastStart}.  Threads are grouped by the position
+     * they started at, in order, so earlier starts take precedence.
+     * @return the leftmost match, and of the matches that begin there the
+     * longest, or null if there is none.
+     */
+    private Match.FinalMatch<E> run(List<E> tokens, int startIndex, int lastStart, int endIndex) {
+        this.reset();
+        for (int index = startIndex; ; index++) {
+            this.visit(tokens, index, index <= lastStart && index < endIndex);
+            if (index == endIndex) {
+                break;
+            }
+
+            if (this.budget != null) {
+                this.budget.charge(1 + this.threads.size);
+            }
+
+            this.step(tokens.get(index), index + 1);
+
+            if (this.seeds.size == 0 && (this.solution != null || index + 1 > lastStart)) {
+                break;
+            }
+        }
+
+        if (this.solution == null) {
+            return null;
+        }
+
+        return PikeVm.buildMatch(this.nfa, tokens, this.solution);
+    }
+
+    /**
+     * Forget the threads and the match found, to begin a new search.
+     */
+    void reset() {
+        this.seeds.clear();
+        this.solution = null;
+    }
+
+    /**
+     * Close the threads at {@code index}, noting the best match that ends
+     * there, and start a new thread if it could begin a better match.
+     * Either {@link #step(Object, int)} over the token at {@code index} or
+     * the end of the search follows.
+     * @param tokens the tokens, of which those from the earliest start of
+     * a thread through {@code index} must be present.
+     * @param mayStart true iff a new thread may start at {@code index}.
+     */
+    void visit(List<E> tokens, int index, boolean mayStart) {
+        Configurations configurations = this.evaluation.configurations;
+        SparseSet active = this.evaluation.active;
+
+        this.evaluation.memo.next();
+
+        this.threads.clear();
+        for (int i = 0; i < this.seeds.size; ) {
+            // close the threads that started at the same position
+            int start = this.seeds.slots[i][0];
+            int from = this.threads.size;
+            for (; i < this.seeds.size && this.seeds.slots[i][0] == start; i++) {
+                this.threads.add(this.seeds.configurations[i], this.seeds.slots[i]);
+            }
+            this.close(from, index, tokens);
+
+            // can't succeed if no tokens are consumed
+            int[] end = index > start ? this.findEnd(from) : null;
+            if (end != null) {
+                if (this.solution == null || start < this.solution[0]
+                        || start == this.solution[0] && index > this.solution[1]) {
+                    this.solution = end;
+                }
+
+                // later threads can only begin later matches
+                break;
+            }
+        }
+
+        // start a new thread if it could begin a better match
+        int start = configurations.start();
+        if (this.solution == null && mayStart
+                && this.nfa.canStart(tokens.get(index), this.evaluation.memo)
+                && active.add(start)) {
+            int[] slots = new int[2 * this.nfa.groups.length];
+            Arrays.fill(slots, -1);
+            int from = this.threads.size;
+            this.threads.add(start, this.enter(slots, this.nfa.start, index));
+            this.close(from, index, tokens);
+        }
+
+        active.clear();
+    }
+
+    /**
+     * @return the slots of the best match found, or null if there is none.
+     */
+    int[] solution() {
+        return this.solution;
+    }
+
+    /**
+     * @return true iff no threads remain after the last step.
+     */
+    boolean isDead() {
+        return this.seeds.size == 0;
+    }
+
+    /**
+     * @return the position the earliest remaining thread started at, or
+     * -1 if there are none.
+     */
+    int earliestStart() {
+        return this.seeds.size == 0 ? -1 : this.seeds.slots[0][0];
+    }
+
+    /**
+     * Expand the threads from {@code from} on through epsilon transitions
+     * and the assertions that hold, in the order the evaluation in
+     * {@link CompiledAutomaton} expands its steps.
+     * @param position the present position in the tokens.
+     */
+    private void close(int from, int position, List<E> tokens) {
+        Configurations configurations = this.evaluation.configurations;
+        SparseSet active = this.evaluation.active;
+
+        int size = this.threads.size;
+        for (int i = from; i < size; i++) {
+            this.expandEpsilon(i, position);
+        }
+
+        int intermediate = from;
+        int intermediateEnd = this.threads.size;
+        while (true) {
+            // handle assertions
+            int before = this.threads.size;
+            for (int i = intermediate; i < intermediateEnd; i++) {
+                int configuration = this.threads.configurations[i];
+                int state = configurations.state(configuration);
+                for (int e = this.nfa.edgeOffsets[state]; e < this.nfa.edgeOffsets[state + 1]; e++) {
+                    int expression = this.nfa.edgeExpressions[e];
+                    if (this.nfa.assertions[expression]
+                            && this.nfa.holds(expression, position, tokens)) {
+                        int dest = configurations.edge(configuration, e);
+                        if (active.add(dest)) {
+                            this.threads.add(dest, this.enter(this.threads.slots[i],
+                                        this.nfa.edgeTargets[e], position));
+                        }
+                    }
+                }
+            }
+
+            size = this.threads.size;
+            for (int i = before; i < size; i++) {
+                this.expandEpsilon(i, position);
+            }
+
+            if (this.threads.size == before) {
+                break;
+            }
+
+            intermediate = before;
+            intermediateEnd = this.threads.size;
+        }
+    }
+
+    /**
+     * Add the threads reachable from thread {@code i} by epsilon
+     * transitions, depth first.
+     */
+    private void expandEpsilon(int i, int position) {
+        Configurations configurations = this.evaluation.configurations;
+        int configuration = this.threads.configurations[i];
+        int[] slots = this.threads.slots[i];
+        int state = configurations.state(configuration);
+        for (int e = this.nfa.epsilonOffsets[state]; e < this.nfa.epsilonOffsets[state + 1]; e++) {
+            int dest = configurations.epsilon(configuration, e);
+
+            // try free edges if they do not lead to an existing thread,
+            // and their counter allows them
+            if (dest >= 0 && this.evaluation.active.add(dest)) {
+                this.threads.add(dest, this.enter(slots, this.nfa.epsilonTargets[e], position));
+                this.expandEpsilon(this.threads.size - 1, position);
+            }
+        }
+    }
+
+    /**
+     * Take the transitions out of the present threads that match
+     * {@code token}, replacing the seeds with the threads they reach.  The
+     * memo must hold the results on {@code token}.
+     * @param position the position after {@code token}.
+     */
+    void step(E token, int position) {
+        Configurations configurations = this.evaluation.configurations;
+        SparseSet active = this.evaluation.active;
+        CompiledAutomaton<E>.Memo memo = this.evaluation.memo;
+
+        this.seeds.clear();
+        for (int i = 0; i < this.threads.size; i++) {
+            int configuration = this.threads.configurations[i];
+            int state = configurations.state(configuration);
+            for (int e = this.nfa.edgeOffsets[state]; e < this.nfa.edgeOffsets[state + 1]; e++) {
+                // try other edges if they match the current token
+                int expression = this.nfa.edgeExpressions[e];
+                if (!this.nfa.assertions[expression]) {
+                    int dest = configurations.edge(configuration, e);
+                    if (!active.contains(dest) && memo.apply(expression, token)) {
+                        active.add(dest);
+                        this.seeds.add(dest, this.enter(this.threads.slots[i],
+                                    this.nfa.edgeTargets[e], position));
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * @return the slots of a thread that enters {@code state} at
+     * {@code position}, copied if a group begins or ends there.
+     */
+    private int[] enter(int[] slots, int state, int position) {
+        int group = this.nfa.stateGroups[state];
+        if (group < 0) {
+            return slots;
+        }
+
+        int[] copy = slots.clone();
+        copy[2 * group + (this.nfa.kinds[state] == CompiledAutomaton.START ? 0 : 1)] = position;
+        return copy;
+    }
+
+    /**
+     * @return the slots of the first thread from {@code from} on that is at
+     * the end state, or null if there is none.
+     */
+    private int[] findEnd(int from) {
+        Configurations configurations = this.evaluation.configurations;
+        for (int i = from; i < this.threads.size; i++) {
+            if (configurations.state(this.threads.configurations[i]) == this.nfa.end) {
+                return this.threads.slots[i];
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * @return a match of {@code nfa} that computes its groups from
+     * {@code slots} and retraces its pairs when they are needed.  The
+     * groups are numbered in the order they can match, so those that
+     * participated are in the order they matched.  The match keeps a copy
+     * of its tokens, see {@link CompiledAutomaton#snapshot}.
+     */
+    static <E> Match.FinalMatch<E> buildMatch(final CompiledAutomaton<E> nfa,
+            List<E> source, final int[] slots) {
+        final int startIndex = slots[0];
+        final int endIndex = slots[1];
+        final List<E> tokens = nfa.snapshot(source, startIndex, endIndex);
+        return new Match.FinalMatch<E>(tokens, startIndex, endIndex,
+                new Supplier<List<Match.Group<E>>>() {
+                    public List<Match.Group<E>> get() {
+                        List<Match.Group<E>> groups =
+                            new ArrayList<Match.Group<E>>(nfa.groups.length);
+                        for (int group = 0; group < nfa.groups.length; group++) {
+                            int start = slots[2 * group];
+                            groups.add(start < 0 ? null : new Match.Group<E>(nfa.groups[group],
+                                        tokens, start, slots[2 * group + 1]));
+                        }
+
+                        return Collections.unmodifiableList(groups);
+                    }
+                },
+                nfa.groupIndex(),
+                new Supplier<List<Match.Group<E>>>() {
+                    public List<Match.Group<E>> get() {
+                        return nfa.pairs(tokens, startIndex, endIndex);
+                    }
+                });
+    }
+
+    /**
+     * The configurations of a list of threads and their slots.  Slot
+     * {@code 2 * g} is the position group {@code g} began at and slot
+     * {@code 2 * g + 1} the position it ended at, or -1.
+     */
+    private static class Threads {
+        public int size;
+        public int[] configurations = new int[16];
+        public int[][] slots = new int[16][];
+
+        public void add(int configuration, int[] slots) {
+            if (this.size == this.configurations.length) {
+                this.configurations = Arrays.copyOf(this.configurations, 2 * this.size);
+                this.slots = Arrays.copyOf(this.slots, 2 * this.size);
+            }
+
+            this.configurations[this.size] = configuration;
+            this.slots[this.size++] = slots;
+        }
+
+        public void clear() {
+            this.size = 0;
+        }
+    }
+}
@@ -1,5 +1,8 @@
 package edu.washington.cs.knowitall.regex;
 
+import java.util.Collections;
+import java.util.List;
+
 /**
  *
  * @author Michael Schmitz <schmmd@cs.washington.edu>
@@ -26,4 +29,32 @@ public class RegexException extends RuntimeException {
             super(message);
         }
     }
+
+    /**
+     * A search ran out of its {@link Budget} or was cancelled.  A search
+     * for all the matches keeps those it found before it stopped.
+     */
+    public static class BudgetExceededException extends RegexException {
+        private static final long serialVersionUID = -2240582337212962385L;
+
+        private final List<?> matches;
+
+        public BudgetExceededException(String message) {
+            super(message);
+            this.matches = Collections.emptyList();
+        }
+
+        public BudgetExceededException(BudgetExceededException e, List<?> matches) {
+            super(e.getMessage(), e);
+            this.matches = matches;
+        }
+
+        /**
+         * @return the matches found before the search stopped.
+         */
+        @SuppressWarnings("unchecked")
+        public <E> List<Match<E>> matches() {
+            return (List<Match<E>>) this.matches;
+        }
+    }
 }
@@ -2,31 +2,153 @@ package edu.washington.cs.knowitall.regex;
 
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Scanner;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 
 import com.google.common.base.Predicate;
 import com.google.common.base.Joiner;
 import com.google.common.base.Function;
+import com.google.common.collect.Lists;
 
 import edu.washington.cs.knowitall.regex.Expression.BaseExpression;
 import edu.washington.cs.knowitall.regex.FiniteAutomaton.Automaton;
+import edu.washington.cs.knowitall.regex.RegexException.BudgetExceededException;
 
 /**
  * A regular expression engine that operates over sequences of user-specified
  * objects.
  *
+ * A regular expression is immutable once it is built and may be shared
+ * between threads.  Each search keeps its working state to itself, and
+ * the lazy DFA (see {@link #withLazyDfa()}) is built separately by each
+ * thread.  The batch methods that take a {@link ForkJoinPool} match many
+ * sequences in parallel.
+ *
  * @author Michael Schmitz <schmmd@cs.washington.edu>
  *
  * @param  <E>  the type of the sequence elements
  */
 public class RegularExpression<E> implements Predicate<List<E>> {
     public final List<Expression<E>> expressions;
-    public final Automaton<E> auto;
+    public final CompiledAutomaton<E> auto;
+
+    /**
+     * The lazily built DFA of each thread, or null if matching only runs
+     * the NFA.
+     */
+    private final ThreadLocal<LazyDfa<E>> dfa;
+
+    /**
+     * The lazily built DFA of each thread for the reversed expression,
+     * which finds where a match begins from where it ends, or null if the
+     * expression cannot be reversed or matching only runs the NFA.
+     */
+    private final ThreadLocal<LazyDfa<E>> reverseDfa;
+
+    /**
+     * Base expressions that every match applies to some token, see
+     * {@link #required(Expression, Map)}.
+     */
+    private final List<Expression<E>> required;
 
     public RegularExpression(List<Expression<E>> expressions) {
         this.expressions = expressions;
-        this.auto = RegularExpression.build(this.expressions);
+        this.auto = RegularExpression.build(this.expressions).compile();
+        this.dfa = null;
+        this.reverseDfa = null;
+
+        Map<Object, Expression<E>> required = new LinkedHashMap<Object, Expression<E>>();
+        for (Expression<E> expr : expressions) {
+            RegularExpression.required(expr, required);
+        }
+        this.required = new ArrayList<Expression<E>>(required.values());
+    }
+
+    private RegularExpression(RegularExpression<E> regex, final int maxDfaStates) {
+        this.expressions = regex.expressions;
+        this.auto = regex.auto;
+        this.required = regex.required;
+        this.dfa = new ThreadLocal<LazyDfa<E>>() {
+            @Override
+            protected LazyDfa<E> initialValue() {
+                return new LazyDfa<E>(auto, maxDfaStates);
+            }
+        };
+
+        List<Expression<E>> reversed = RegularExpression.reverse(regex.expressions);
+        if (reversed == null) {
+            this.reverseDfa = null;
+        }
+        else {
+            final CompiledAutomaton<E> reverse = RegularExpression.build(reversed).compile();
+            this.reverseDfa = new ThreadLocal<LazyDfa<E>>() {
+                @Override
+                protected LazyDfa<E> initialValue() {
+                    return new LazyDfa<E>(reverse, maxDfaStates);
+                }
+            };
+        }
+    }
+
+    private RegularExpression(RegularExpression<E> regex, CompiledAutomaton<E> auto) {
+        this.expressions = regex.expressions;
+        this.auto = auto;
+        this.required = regex.required;
+        this.dfa = regex.dfa;
+        this.reverseDfa = regex.reverseDfa;
+    }
+
+    /**
+     * Create a copy of this regular expression that runs a lazily built
+     * DFA to decide whether and where a match ends, and only runs the NFA
+     * over the tokens of a match to retrace its groups.  The DFA caches
+     * its states, so this pays off when the expression is applied to many
+     * tokens.
+     *
+     * @return a regular expression that uses a lazy DFA.
+     */
+    public RegularExpression<E> withLazyDfa() {
+        return this.withLazyDfa(LazyDfa.DEFAULT_MAX_STATES);
+    }
+
+    /**
+     * Create a copy of this regular expression that runs a lazily built
+     * DFA, see {@link #withLazyDfa()}.
+     *
+     * @param maxStates the number of DFA states to cache (per thread)
+     * before the cache is flushed.
+     * @return a regular expression that uses a lazy DFA.
+     */
+    public RegularExpression<E> withLazyDfa(int maxStates) {
+        // fail now rather than on first use
+        new LazyDfa<E>(this.auto, maxStates);
+        return new RegularExpression<E>(this, maxStates);
+    }
+
+    /**
+     * Create a copy of this regular expression whose bit-parallel matcher
+     * (see {@link ShiftAnd}) is a class generated for it, with the
+     * automaton hard-coded and a separate call to each expression that
+     * the JIT can inline.  Generating a class is costly and the class is
+     * kept as long as its class loader, so this is for the few expressions
+     * that are matched the most.  Matching behaves the same either way.
+     *
+     * @return a regular expression that runs a generated matcher, or this
+     * one if the expression has no bit-parallel matcher or the JVM cannot
+     * define classes at runtime.
+     */
+    public RegularExpression<E> withGeneratedMatcher() {
+        ShiftAnd<E> generated = this.auto.shiftAnd == null ? null : this.auto.shiftAnd.generate();
+        if (generated == null) {
+            return this;
+        }
+
+        return new RegularExpression<E>(this, new CompiledAutomaton<E>(this.auto, generated));
     }
 
     /***
@@ -80,6 +202,144 @@ public class RegularExpression<E> implements Predicate<List<E>> {
         return Joiner.on(" ").join(expressions);
     }
 
+    /**
+     * Each capturing group has a fixed number: group 0 is the whole match
+     * and the others are numbered from left to right, counting a group
+     * before the groups it contains.  The numbers are the argument of
+     * {@link Match#group(int)}.
+     *
+     * @return the number of each named group.  Names used by more than
+     * one group are left out; {@link Match#group(String)} returns the first
+     * of those that participated.
+     */
+    public Map<String, Integer> groupIndex() {
+        return auto.groupIndex();
+    }
+
+    /**
+     * @return the number of capturing groups, including group 0.
+     */
+    public int groupCount() {
+        return auto.groupCount();
+    }
+
+    /**
+     * Add the base expressions that every match of {@code expr} applies to
+     * some token.  The alternatives of an {@code Or} and the bodies of
+     * expressions that can match zero times are not required.  Base
+     * expressions that are the same predicate are added once.
+     */
+    private static <E> void required(Expression<E> expr,
+            Map<Object, Expression<E>> required) {
+        if (expr instanceof BaseExpression<?>) {
+            required.put(((BaseExpression<E>) expr).key(), expr);
+        }
+        else if (expr instanceof Expression.MatchingGroup<?>) {
+            for (Expression<E> child : ((Expression.MatchingGroup<E>) expr).expressions) {
+                RegularExpression.required(child, required);
+            }
+        }
+        else if (expr instanceof Expression.Plus<?>) {
+            RegularExpression.required(((Expression.Plus<E>) expr).expr, required);
+        }
+        else if (expr instanceof Expression.MinMax<?>
+                && ((Expression.MinMax<E>) expr).minOccurrences > 0) {
+            RegularExpression.required(((Expression.MinMax<E>) expr).expr, required);
+        }
+    }
+
+    /**
+     * Reverse a sequence of expressions, so the reversed expressions match
+     * the reversed tokens of each match.  Groups become non-matching
+     * groups, and start and end assertions trade places.
+     * @return the reversed expressions, or null if some expression is of
+     * a class that cannot be reversed.
+     */
+    static <E> List<Expression<E>> reverse(List<Expression<E>> exprs) {
+        List<Expression<E>> reversed = new ArrayList<Expression<E>>(exprs.size());
+        for (int i = exprs.size() - 1; i >= 0; i--) {
+            Expression<E> expr = RegularExpression.reverse(exprs.get(i));
+            if (expr == null) {
+                return null;
+            }
+            reversed.add(expr);
+        }
+
+        return reversed;
+    }
+
+    private static <E> Expression<E> reverse(Expression<E> expr) {
+        if (expr instanceof BaseExpression<?>) {
+            return expr;
+        }
+        else if (expr instanceof Expression.StartAssertion<?>) {
+            return new Expression.EndAssertion<E>();
+        }
+        else if (expr instanceof Expression.EndAssertion<?>) {
+            return new Expression.StartAssertion<E>();
+        }
+        else if (expr instanceof Expression.MatchingGroup<?>) {
+            List<Expression<E>> reversed =
+                RegularExpression.reverse(((Expression.MatchingGroup<E>) expr).expressions);
+            return reversed == null ? null : new Expression.NonMatchingGroup<E>(reversed);
+        }
+        else if (expr instanceof Expression.Or<?>) {
+            Expression.Or<E> or = (Expression.Or<E>) expr;
+            Expression<E> expr1 = RegularExpression.reverse(or.expr1);
+            Expression<E> expr2 = RegularExpression.reverse(or.expr2);
+            return expr1 == null || expr2 == null ? null : new Expression.Or<E>(expr1, expr2);
+        }
+        else if (expr instanceof Expression.Star<?>) {
+            Expression<E> body = RegularExpression.reverse(((Expression.Star<E>) expr).expr);
+            return body == null ? null : new Expression.Star<E>(body);
+        }
+        else if (expr instanceof Expression.Plus<?>) {
+            Expression<E> body = RegularExpression.reverse(((Expression.Plus<E>) expr).expr);
+            return body == null ? null : new Expression.Plus<E>(body);
+        }
+        else if (expr instanceof Expression.Option<?>) {
+            Expression<E> body = RegularExpression.reverse(((Expression.Option<E>) expr).expr);
+            return body == null ? null : new Expression.Option<E>(body);
+        }
+        else if (expr instanceof Expression.MinMax<?>) {
+            Expression.MinMax<E> minMax = (Expression.MinMax<E>) expr;
+            Expression<E> body = RegularExpression.reverse(minMax.expr);
+            return body == null ? null : new Expression.MinMax<E>(body,
+                    minMax.minOccurrences, minMax.maxOccurrences);
+        }
+        else {
+            return null;
+        }
+    }
+
+    /**
+     * Check that each required base expression applies to some token from
+     * {@code start} on.  This is a linear scan, so it is cheaper than
+     * running the automaton on tokens that cannot match.
+     * @return false if no match can begin at or after {@code start}.
+     */
+    private boolean mayMatch(List<E> tokens, int start) {
+        int missing = this.required.size();
+        if (missing == 0) {
+            return true;
+        }
+
+        boolean[] found = new boolean[missing];
+        for (int i = start; i < tokens.size(); i++) {
+            E token = tokens.get(i);
+            for (int j = 0; j < found.length; j++) {
+                if (!found[j] && this.required.get(j).apply(token)) {
+                    found[j] = true;
+                    if (--missing == 0) {
+                        return true;
+                    }
+                }
+            }
+        }
+
+        return false;
+    }
+
     /**
      * Build an NFA from the list of expressions.
      * @param exprs
@@ -97,11 +357,16 @@ public class RegularExpression<E> implements Predicate<List<E>> {
      */
     @Override
     public boolean apply(List<E> tokens) {
-        if (this.find(tokens) != null) {
-            return true;
-        } else {
+        tokens = CompiledAutomaton.randomAccess(tokens);
+        if (!this.mayMatch(tokens, 0)) {
             return false;
         }
+
+        if (this.dfa != null) {
+            return this.dfa.get().contains(tokens, 0);
+        }
+
+        return auto.contains(tokens, 0);
     }
 
     /**
@@ -110,8 +375,17 @@ public class RegularExpression<E> implements Predicate<List<E>> {
      * @return true iff the expression matches all of the tokens.
      */
     public boolean matches(List<E> tokens) {
-        Match<E> match = this.lookingAt(tokens, 0);
-        return match != null && match.endIndex() == tokens.size();
+        tokens = CompiledAutomaton.randomAccess(tokens);
+        if (!this.mayMatch(tokens, 0)) {
+            return false;
+        }
+
+        if (this.dfa != null) {
+            return tokens.size() - auto.minMatchingLength() >= 0
+                && this.dfa.get().longestMatch(tokens, 0) == tokens.size();
+        }
+
+        return auto.matches(tokens);
     }
 
     /**
@@ -136,15 +410,69 @@ public class RegularExpression<E> implements Predicate<List<E>> {
      * @return an object representing the match, or null if no match is found.
      */
     public Match<E> find(List<E> tokens, int start) {
-        Match<E> match;
-        for (int i = start; i <= tokens.size() - auto.minMatchingLength(); i++) {
-            match = this.lookingAt(tokens, i);
-            if (match != null) {
-                return match;
-            }
+        tokens = CompiledAutomaton.randomAccess(tokens);
+        if (!this.mayMatch(tokens, start)) {
+            return null;
         }
 
-        return null;
+        return this.findUnfiltered(tokens, start);
+    }
+
+    /**
+     * Find the first match of the regular expression against tokens, starting
+     * at the specified index, within a budget.  The NFA is run even if the
+     * expression has a lazy DFA, so the steps it takes are counted.
+     *
+     * @param tokens tokens to match against.
+     * @param start index to start looking for a match.
+     * @param budget the budget charged for the steps of the search.
+     * @return an object representing the match, or null if no match is found.
+     * @throws BudgetExceededException if the budget runs out or is
+     * cancelled before the search ends.
+     */
+    public Match<E> find(List<E> tokens, int start, Budget budget) {
+        tokens = CompiledAutomaton.randomAccess(tokens);
+        if (!this.mayMatch(tokens, start)) {
+            return null;
+        }
+
+        return auto.find(tokens, start, tokens.size(), budget);
+    }
+
+    /**
+     * Find the first match without checking the required expressions.
+     */
+    private Match<E> findUnfiltered(List<E> tokens, int start) {
+        if (this.dfa != null && this.reverseDfa != null) {
+            return this.findSpan(tokens, start);
+        }
+
+        if (this.dfa != null && !this.dfa.get().contains(tokens, start)) {
+            return null;
+        }
+
+        return auto.find(tokens, start);
+    }
+
+    /**
+     * Find the first match in three passes, so the groups are only tracked
+     * over the tokens of the match.  The DFA finds where the first match
+     * ends and follows the matches that begin before it to their ends.
+     * The leftmost match is one of them, so the reversed DFA, run back
+     * from the last of those ends, finds where it begins.  Then the NFA
+     * runs from there to find the longest match and its groups.
+     */
+    private Match<E> findSpan(List<E> tokens, int start) {
+        int[] ends = this.dfa.get().matchEnds(tokens, start);
+        if (ends == null) {
+            return null;
+        }
+
+        // a match ends between the first and last end, and begins after start
+        int size = tokens.size();
+        int reverseEnd = this.reverseDfa.get().lastEnd(Lists.reverse(tokens),
+                size - ends[1], size - ends[0], size - start);
+        return auto.lookingAt(tokens, size - reverseEnd, ends[1]);
     }
 
     /**
@@ -167,9 +495,49 @@ public class RegularExpression<E> implements Predicate<List<E>> {
      * @return an object representing the match, or null if no match is found.
      */
     public Match<E> lookingAt(List<E> tokens, int start) {
+        tokens = CompiledAutomaton.randomAccess(tokens);
+        if (!this.mayMatch(tokens, start)) {
+            return null;
+        }
+
+        if (this.dfa != null) {
+            if (tokens.size() - start - auto.minMatchingLength() < 0) {
+                return null;
+            }
+
+            int end = this.dfa.get().longestMatch(tokens, start);
+            if (end < 0) {
+                return null;
+            }
+
+            return auto.lookingAt(tokens, start, end);
+        }
+
         return auto.lookingAt(tokens, start);
     }
 
+    /**
+     * Determine if the regular expression matches the supplied tokens,
+     * starting at the specified index, within a budget.  The NFA is run
+     * even if the expression has a lazy DFA, so the steps it takes are
+     * counted.
+     *
+     * @param tokens the list of tokens to match.
+     * @param start the index where the match should begin.
+     * @param budget the budget charged for the steps of the search.
+     * @return an object representing the match, or null if no match is found.
+     * @throws BudgetExceededException if the budget runs out or is
+     * cancelled before the search ends.
+     */
+    public Match<E> lookingAt(List<E> tokens, int start, Budget budget) {
+        tokens = CompiledAutomaton.randomAccess(tokens);
+        if (!this.mayMatch(tokens, start)) {
+            return null;
+        }
+
+        return auto.lookingAt(tokens, start, tokens.size(), budget);
+    }
+
     public Match<E> match(List<E> tokens) {
         Match<E> match = this.lookingAt(tokens);
         if (match != null && match.endIndex() == tokens.size()) {
@@ -187,12 +555,16 @@ public class RegularExpression<E> implements Predicate<List<E>> {
      * @return an list of objects representing the match.
      */
     public List<Match<E>> findAll(List<E> tokens) {
+        tokens = CompiledAutomaton.randomAccess(tokens);
         List<Match<E>> results = new ArrayList<Match<E>>();
+        if (!this.mayMatch(tokens, 0)) {
+            return results;
+        }
 
         int start = 0;
         Match<E> match;
         do {
-            match = this.find(tokens, start);
+            match = this.findUnfiltered(tokens, start);
 
             if (match != null) {
                 start = match.endIndex();
@@ -207,6 +579,271 @@ public class RegularExpression<E> implements Predicate<List<E>> {
         return results;
     }
 
+    /**
+     * Find all non-overlapping matches of the regular expression against
+     * tokens, within a budget shared by the searches for each match.
+     *
+     * @param tokens
+     * @param budget the budget charged for the steps of the searches.
+     * @return an list of objects representing the match.
+     * @throws BudgetExceededException if the budget runs out or is
+     * cancelled before the last search ends.  It holds the matches found
+     * until then.
+     */
+    public List<Match<E>> findAll(List<E> tokens, Budget budget) {
+        tokens = CompiledAutomaton.randomAccess(tokens);
+        List<Match<E>> results = new ArrayList<Match<E>>();
+        if (!this.mayMatch(tokens, 0)) {
+            return results;
+        }
+
+        int start = 0;
+        Match<E> match;
+        do {
+            try {
+                match = auto.find(tokens, start, tokens.size(), budget);
+            }
+            catch (BudgetExceededException e) {
+                throw new BudgetExceededException(e, results);
+            }
+
+            if (match != null) {
+                start = match.endIndex();
+
+                // match may be empty query string has all optional parts
+                if (!match.isEmpty()) {
+                    results.add(match);
+                }
+            }
+        } while (match != null);
+
+        return results;
+    }
+
+    /**
+     * Find all non-overlapping matches in each of the sequences, matching
+     * the sequences in parallel on {@code pool}.
+     *
+     * @return the matches in each sequence, in the order of the sequences.
+     */
+    public List<List<Match<E>>> findAll(Collection<? extends List<E>> sequences,
+            ForkJoinPool pool) {
+        return RegularExpression.map(sequences, pool, new Function<List<E>, List<Match<E>>>() {
+            @Override
+            public List<Match<E>> apply(List<E> tokens) {
+                return RegularExpression.this.findAll(tokens);
+            }
+        });
+    }
+
+    /**
+     * Apply the expression against each of the sequences, in parallel on
+     * {@code pool}.
+     *
+     * @return whether the expression is found within each sequence, in the
+     * order of the sequences.
+     */
+    public List<Boolean> apply(Collection<? extends List<E>> sequences, ForkJoinPool pool) {
+        return RegularExpression.map(sequences, pool, new Function<List<E>, Boolean>() {
+            @Override
+            public Boolean apply(List<E> tokens) {
+                return RegularExpression.this.apply(tokens);
+            }
+        });
+    }
+
+    /**
+     * Apply the expression against each of the sequences, in parallel on
+     * {@code pool}.
+     *
+     * @return whether the expression matches all of each sequence, in the
+     * order of the sequences.
+     */
+    public List<Boolean> matches(Collection<? extends List<E>> sequences, ForkJoinPool pool) {
+        return RegularExpression.map(sequences, pool, new Function<List<E>, Boolean>() {
+            @Override
+            public Boolean apply(List<E> tokens) {
+                return RegularExpression.this.matches(tokens);
+            }
+        });
+    }
+
+    /**
+     * Find all non-overlapping matches in a long sequence, splitting it
+     * into segments of {@code segmentLength} tokens that are searched in
+     * parallel on {@code pool}.  The matches are the same as those of
+     * {@link #findAll(List)}.
+     *
+     * Each segment is searched from its first token on, taking the
+     * matches that begin within it.  The sequential search resumes at the
+     * end of the last match, so it uses the matches of a segment once it
+     * resumes where the search of the segment started or resumed, and
+     * only searches again itself until then.
+     *
+     * @return the matches, in order.
+     */
+    public List<Match<E>> findAll(List<E> sequence, final int segmentLength,
+            ForkJoinPool pool) {
+        if (segmentLength < 1) {
+            throw new IllegalArgumentException("segmentLength must be >= 1: " + segmentLength);
+        }
+
+        final List<E> tokens = CompiledAutomaton.randomAccess(sequence);
+
+        List<Match<E>> results = new ArrayList<Match<E>>();
+        if (!this.mayMatch(tokens, 0)) {
+            return results;
+        }
+
+        final int size = tokens.size();
+        List<Integer> segments = new ArrayList<Integer>();
+        for (int from = 0; from < size; from += segmentLength) {
+            segments.add(from);
+        }
+
+        List<List<Match<E>>> chains = RegularExpression.map(segments, pool,
+                new Function<Integer, List<Match<E>>>() {
+            @Override
+            public List<Match<E>> apply(Integer from) {
+                return RegularExpression.this.findAll(tokens, from,
+                                                      Math.min(from + segmentLength, size));
+            }
+        });
+
+        int start = 0;
+        for (int k = 0; k < segments.size(); k++) {
+            int from = segments.get(k);
+            int to = Math.min(from + segmentLength, size);
+            List<Match<E>> chain = chains.get(k);
+
+            // search until the search meets the segment's
+            int next = RegularExpression.resume(chain, from, start);
+            while (next < 0 && start < to) {
+                Match<E> match = auto.find(tokens, start, to - 1);
+                if (match == null) {
+                    start = to;
+                    break;
+                }
+
+                results.add(match);
+                start = match.endIndex();
+                next = RegularExpression.resume(chain, from, start);
+            }
+
+            if (next >= 0) {
+                results.addAll(chain.subList(next, chain.size()));
+                if (!chain.isEmpty()) {
+                    start = Math.max(start, chain.get(chain.size() - 1).endIndex());
+                }
+                start = Math.max(start, to);
+            }
+        }
+
+        return results;
+    }
+
+    /**
+     * @return the index of the match of a segment's search that a search
+     * resuming at {@code start} finds next, or -1 if the segment's search
+     * never resumed there.
+     * @param from the index the segment's search started at.
+     */
+    private static <E> int resume(List<Match<E>> chain, int from, int start) {
+        if (start == from) {
+            return 0;
+        }
+
+        for (int i = 0; i < chain.size() && chain.get(i).endIndex() <= start; i++) {
+            if (chain.get(i).endIndex() == start) {
+                return i + 1;
+            }
+        }
+
+        return -1;
+    }
+
+    /**
+     * Find the non-overlapping matches that begin between {@code from} and
+     * {@code to}, searching from {@code from}.
+     */
+    private List<Match<E>> findAll(List<E> tokens, int from, int to) {
+        List<Match<E>> results = new ArrayList<Match<E>>();
+        int start = from;
+        while (start < to) {
+            Match<E> match = auto.find(tokens, start, to - 1);
+            if (match == null) {
+                break;
+            }
+
+            results.add(match);
+            start = match.endIndex();
+        }
+
+        return results;
+    }
+
+    /**
+     * Apply {@code function} to each of the inputs on {@code pool}.  Each
+     * task takes a contiguous run of inputs, so a worker matches several
+     * sequences in a row with its own lazy DFA.
+     */
+    @SuppressWarnings("unchecked")
+    private static <T, R> List<R> map(Collection<? extends T> collection, ForkJoinPool pool,
+            Function<T, R> function) {
+        List<T> inputs = new ArrayList<T>(collection);
+        Object[] results = new Object[inputs.size()];
+        int grain = Math.max(1, inputs.size() / (8 * pool.getParallelism()));
+        pool.invoke(new MapTask<T, R>(inputs, results, function, 0, inputs.size(), grain));
+
+        List<R> list = new ArrayList<R>(results.length);
+        for (Object result : results) {
+            list.add((R) result);
+        }
+
+        return list;
+    }
+
+    /**
+     * Apply a function to the inputs from {@code from} to {@code to},
+     * storing the results at the same indices.
+     */
+    private static class MapTask<T, R> extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final List<T> inputs;
+        private final Object[] results;
+        private final Function<T, R> function;
+        private final int from;
+        private final int to;
+        private final int grain;
+
+        public MapTask(List<T> inputs, Object[] results, Function<T, R> function,
+                int from, int to, int grain) {
+            this.inputs = inputs;
+            this.results = results;
+            this.function = function;
+            this.from = from;
+            this.to = to;
+            this.grain = grain;
+        }
+
+        @Override
+        protected void compute() {
+            if (this.to - this.from <= this.grain) {
+                for (int i = this.from; i < this.to; i++) {
+                    this.results[i] = this.function.apply(this.inputs.get(i));
+                }
+            }
+            else {
+                int middle = (this.from + this.to) >>> 1;
+                invokeAll(new MapTask<T, R>(this.inputs, this.results, this.function,
+                                            this.from, middle, this.grain),
+                          new MapTask<T, R>(this.inputs, this.results, this.function,
+                                            middle, this.to, this.grain));
+            }
+        }
+    }
+
     /**
      * An interactive program that compiles a word-based regular expression
      * specified in arg1 and then reads strings from stdin, evaluating them
@@ -1,7 +1,10 @@
 package edu.washington.cs.knowitall.regex;
 
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -21,6 +24,33 @@ import edu.washington.cs.knowitall.regex.RegexException.TokenizationRegexExcepti
  * @param  <E>  the type of the sequence elements
  */
 public abstract class RegularExpressionParser<E> implements Function<String, RegularExpression<E>> {
+    /**
+     * The base expressions created by this parser by their source, or null
+     * if they are only shared within a single pattern.
+     */
+    private final Map<String, BaseExpression<E>> interned;
+
+    public RegularExpressionParser() {
+        this(false);
+    }
+
+    /**
+     * A token that occurs more than once in a pattern, such as {@code <the>}
+     * in {@code <the> <cat> | <the> <dog>}, is created once and shared.
+     *
+     * @param internAcrossPatterns share base expressions across all the
+     * patterns this parser parses, rather than only within a pattern.  The
+     * parser then holds on to every base expression it creates.
+     */
+    public RegularExpressionParser(boolean internAcrossPatterns) {
+        if (internAcrossPatterns) {
+            this.interned = new ConcurrentHashMap<String, BaseExpression<E>>();
+        }
+        else {
+            this.interned = null;
+        }
+    }
+
     /***
      * The factory method creates an expression from the supplied token string.
      * @param  token  a string representation of a token
@@ -87,11 +117,29 @@ public abstract class RegularExpressionParser<E> implements Function<String, Reg
      * @return
      */
     public List<Expression<E>> tokenize(String string) {
+        if (this.interned != null) {
+            return this.tokenize(string, this.interned);
+        }
+        else {
+            return this.tokenize(string, new HashMap<String, BaseExpression<E>>());
+        }
+    }
+
+    /**
+     * Convert a list of tokens (<...>) to a list of expressions, reusing
+     * the base expressions in {@code interned}.
+     *
+     * @param string
+     * @param interned the base expressions created so far by their source.
+     * @return
+     */
+    protected List<Expression<E>> tokenize(String string,
+            Map<String, BaseExpression<E>> interned) {
         List<Expression<E>> expressions = new ArrayList<Expression<E>>();
 
         final Pattern whitespacePattern = Pattern.compile("\\s+");
         final Pattern unaryPattern = Pattern.compile("[*?+]");
-        final Pattern minMaxPattern = Pattern.compile("\\{(\\d+),(\\d+)\\}");
+        final Pattern minMaxPattern = Pattern.compile("\\{(\\d+),(\\d*)\\}");
         final Pattern binaryPattern = Pattern.compile("[|]");
 
         List<String> tokens = new ArrayList<String>();
@@ -129,18 +177,18 @@ public abstract class RegularExpressionParser<E> implements Function<String, Reg
                     if ((matcher = namedPattern.matcher(group)).matches()) {
                         String groupName = matcher.group(1);
                         group = matcher.group(2);
-                        List<Expression<E>> groupExpressions = this.tokenize(group);
+                        List<Expression<E>> groupExpressions = this.tokenize(group, interned);
                         expressions.add(new Expression.NamedGroup<E>(groupName, groupExpressions));
                     }
                     // unnamed group
                     else if ((matcher = unnamedPattern.matcher(group)).matches()) {
                         group = matcher.group(1);
-                        List<Expression<E>> groupExpressions = this.tokenize(group);
+                        List<Expression<E>> groupExpressions = this.tokenize(group, interned);
                         expressions.add(new Expression.NonMatchingGroup<E>(groupExpressions));
                     }
                     // group (matching)
                     else {
-                        List<Expression<E>> groupExpressions = this.tokenize(group);
+                        List<Expression<E>> groupExpressions = this.tokenize(group, interned);
                         expressions.add(new Expression.MatchingGroup<E>(groupExpressions));
                     }
                 }
@@ -151,7 +199,7 @@ public abstract class RegularExpressionParser<E> implements Function<String, Reg
                     try {
                         // strip off enclosing characters
                         String tokenInside = token.substring(1, token.length() - 1);
-                        BaseExpression<E> base = factory(tokenInside);
+                        BaseExpression<E> base = intern(tokenInside, interned);
                         expressions.add(base);
 
                         start += token.length();
@@ -216,11 +264,12 @@ public abstract class RegularExpressionParser<E> implements Function<String, Reg
 
                 start = matcher.end();
             }
-            // min/max operator "{x,y}"
+            // min/max operator "{x,y}" or "{x,}"
             else if ((matcher = minMaxPattern.matcher(string))
                     .region(start, string.length()).lookingAt()) {
                 int minOccurrences = Integer.parseInt(matcher.group(1));
-                int maxOccurrences = Integer.parseInt(matcher.group(2));
+                int maxOccurrences = matcher.group(2).isEmpty()
+                    ? Expression.MinMax.UNBOUNDED : Integer.parseInt(matcher.group(2));
 
                 // pop the last expression and add operator
                 Expression<E> base = expressions.remove(expressions.size() - 1);
@@ -250,6 +299,21 @@ public abstract class RegularExpressionParser<E> implements Function<String, Reg
         return expressions;
     }
 
+    /**
+     * @return the base expression for {@code token}, creating it with
+     * {@link #factory(String)} if it is not yet in {@code interned}.
+     */
+    private BaseExpression<E> intern(String token, Map<String, BaseExpression<E>> interned) {
+        BaseExpression<E> base = interned.get(token);
+        if (base == null) {
+            base = factory(token);
+            base.parser = this;
+            interned.put(token, base);
+        }
+
+        return base;
+    }
+
     private static int indexOfClose(String string, int start, char open, char close) {
         start--;
 
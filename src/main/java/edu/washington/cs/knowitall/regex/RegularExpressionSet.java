@@ -0,0 +1,191 @@
+package edu.washington.cs.knowitall.regex;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import edu.washington.cs.knowitall.regex.FiniteAutomaton.Automaton;
+import edu.washington.cs.knowitall.regex.FiniteAutomaton.State;
+
+/**
+ * A set of regular expressions that are matched against a sequence
+ * together.  The expressions are compiled into a single automaton in which
+ * expressions that begin with elements of the same structure share the
+ * states for those elements, and base expressions that a parser created
+ * from the same source share a predicate, so one pass over the tokens
+ * applies each predicate at most once per token and finds every
+ * expression with a match.
+ *
+ * @param  <E>  the type of the sequence elements
+ */
+public class RegularExpressionSet<E> {
+    public final List<RegularExpression<E>> expressions;
+    private final CompiledAutomaton<E> auto;
+
+    public RegularExpressionSet(List<RegularExpression<E>> expressions) {
+        this.expressions = Collections.unmodifiableList(
+                new ArrayList<RegularExpression<E>>(expressions));
+        this.auto = RegularExpressionSet.build(this.expressions);
+    }
+
+    /**
+     * Build an automaton that accepts the {@code i}th expression in the
+     * {@code i}th accepting state.  The expressions form a trie: the
+     * elements of an expression are built once for each distinct prefix
+     * that ends with them.
+     */
+    private static <E> CompiledAutomaton<E> build(List<RegularExpression<E>> expressions) {
+        State<E> start = new State<E>();
+        Map<Object, Node<E>> root = new HashMap<Object, Node<E>>();
+        List<State<E>> accepts = new ArrayList<State<E>>(expressions.size());
+        int minMatchingLength = Integer.MAX_VALUE;
+        for (RegularExpression<E> regex : expressions) {
+            State<E> state = start;
+            Map<Object, Node<E>> children = root;
+            for (Expression<E> expr : regex.expressions) {
+                Object key = RegularExpressionSet.key(expr);
+                Node<E> node = children.get(key);
+                if (node == null) {
+                    Automaton<E> sub = expr.build();
+                    state.connect(sub.start);
+                    node = new Node<E>(sub.end);
+                    children.put(key, node);
+                }
+
+                state = node.state;
+                children = node.children;
+            }
+
+            State<E> accept = new State<E>();
+            state.connect(accept);
+            accepts.add(accept);
+
+            minMatchingLength = Math.min(minMatchingLength, regex.auto.minMatchingLength());
+        }
+
+        if (expressions.isEmpty()) {
+            minMatchingLength = 0;
+        }
+
+        return new CompiledAutomaton<E>(start, accepts, minMatchingLength);
+    }
+
+    /**
+     * @return a key that is equal for expressions with the same structure.
+     * Base expressions are compared by {@link Expression.BaseExpression#key()}.
+     * Expressions of other classes are their own key.
+     */
+    private static Object key(Expression<?> expr) {
+        if (expr instanceof Expression.BaseExpression<?>) {
+            return ((Expression.BaseExpression<?>) expr).key();
+        }
+        else if (expr instanceof Expression.AssertionExpression<?>) {
+            return expr.getClass();
+        }
+        else if (expr instanceof Expression.MatchingGroup<?>) {
+            List<Object> key = new ArrayList<Object>();
+            key.add(expr.getClass());
+            if (expr instanceof Expression.NamedGroup<?>) {
+                key.add(((Expression.NamedGroup<?>) expr).name);
+            }
+            for (Expression<?> child : ((Expression.MatchingGroup<?>) expr).expressions) {
+                key.add(RegularExpressionSet.key(child));
+            }
+
+            return key;
+        }
+        else if (expr instanceof Expression.Or<?>) {
+            Expression.Or<?> or = (Expression.Or<?>) expr;
+            return Arrays.asList(expr.getClass(), RegularExpressionSet.key(or.expr1),
+                                 RegularExpressionSet.key(or.expr2));
+        }
+        else if (expr instanceof Expression.Star<?>) {
+            return Arrays.asList(expr.getClass(),
+                                 RegularExpressionSet.key(((Expression.Star<?>) expr).expr));
+        }
+        else if (expr instanceof Expression.Plus<?>) {
+            return Arrays.asList(expr.getClass(),
+                                 RegularExpressionSet.key(((Expression.Plus<?>) expr).expr));
+        }
+        else if (expr instanceof Expression.Option<?>) {
+            return Arrays.asList(expr.getClass(),
+                                 RegularExpressionSet.key(((Expression.Option<?>) expr).expr));
+        }
+        else if (expr instanceof Expression.MinMax<?>) {
+            Expression.MinMax<?> minMax = (Expression.MinMax<?>) expr;
+            return Arrays.asList(expr.getClass(), minMax.minOccurrences, minMax.maxOccurrences,
+                                 RegularExpressionSet.key(minMax.expr));
+        }
+        else {
+            return expr;
+        }
+    }
+
+    /**
+     * A node of the trie of expressions.
+     */
+    private static class Node<E> {
+        /**
+         * The state after the elements that lead to this node.
+         */
+        public final State<E> state;
+        public final Map<Object, Node<E>> children = new HashMap<Object, Node<E>>();
+
+        public Node(State<E> state) {
+            this.state = state;
+        }
+    }
+
+    /**
+     * Find the expressions that match within the tokens, in a single pass.
+     *
+     * @return the indices of the expressions found, in increasing order.
+     */
+    public List<Integer> apply(List<E> tokens) {
+        BitSet found = this.auto.accepted(tokens);
+        List<Integer> indices = new ArrayList<Integer>(found.cardinality());
+        for (int i = found.nextSetBit(0); i >= 0; i = found.nextSetBit(i + 1)) {
+            indices.add(i);
+        }
+
+        return indices;
+    }
+
+    /**
+     * Find the first match of each expression in two phases.  First the
+     * combined automaton finds, in a single pass, which expressions have a
+     * match, as {@link #apply(List)} does.  Then each of those expressions
+     * searches the tokens again on its own for its first match.  The
+     * second phase is not shared, so this is a filter in front of
+     * {@link RegularExpression#find(List)}: it saves the most when few of
+     * the expressions match.
+     *
+     * @return the first match of the {@code i}th expression at index
+     * {@code i}, or null if it has no match.
+     */
+    public List<Match<E>> filterAndFind(List<E> tokens) {
+        List<Match<E>> matches = new ArrayList<Match<E>>(
+                Collections.<Match<E>>nCopies(this.expressions.size(), null));
+        for (int i : this.apply(tokens)) {
+            matches.set(i, this.expressions.get(i).find(tokens));
+        }
+
+        return matches;
+    }
+
+    /**
+     * @return the number of states in the combined automaton.
+     */
+    public int stateCount() {
+        return this.auto.stateCount();
+    }
+
+    @Override
+    public String toString() {
+        return this.expressions.toString();
+    }
+}
@@ -0,0 +1,324 @@
+package edu.washington.cs.knowitall.regex;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A bit-parallel run of a {@link GlushkovAutomaton} with at most 64
+ * positions besides the start.  The set of active positions is a single
+ * {@code long}, so a step is a few masks and shifts instead of a walk
+ * over a set of states.
+ *
+ * Every transition into a position consumes a token with the same
+ * expression, so the positions a token can reach are those that follow
+ * the active positions and whose expression applies to it.  The positions
+ * are numbered along the transitions from the start, so the follow set of
+ * a concatenation is the active set shifted by one; only the positions
+ * with other transitions, such as the end of a repetition, are followed
+ * one at a time.  Each distinct expression among the candidates is
+ * applied once.
+ *
+ * A Shift-And run is not modified after it is built, so it may be shared
+ * between threads.
+ *
+ * @param <E>
+ */
+class ShiftAnd<E> {
+    public static final int MAX_POSITIONS = 64;
+
+    /**
+     * A run generated for one Shift-And, see {@link MatcherGenerator}.
+     */
+    abstract static class Compiled {
+        /**
+         * @see ShiftAnd#firstEnd(List, int, int)
+         * @param whole true iff only a match that ends at the last token
+         * counts.
+         */
+        abstract int firstEnd(List<?> tokens, int startIndex, int lastStart, boolean whole);
+    }
+
+    final CompiledAutomaton<E> nfa;
+
+    /**
+     * The positions a new path can reach with its first token, and those
+     * it can also reach at the first token of the input.
+     */
+    final long first;
+    final long firstAtStart;
+
+    /**
+     * The positions followed by the next position, and for each position
+     * the other positions it is followed by.  {@code irregular} has the
+     * positions with other followers.
+     */
+    final long shifts;
+    final long irregular;
+    final long[] follow;
+
+    /**
+     * The expression each position consumes a token with, and the
+     * positions that consume with the same expression.
+     */
+    final int[] expressions;
+    final long[] expressionMasks;
+
+    /**
+     * The positions that accept anywhere, and at the end of the input.
+     */
+    final long accepts;
+    final long acceptsAtEnd;
+
+    /**
+     * The generated run, or null if this one interprets the masks.
+     */
+    private final Compiled compiled;
+
+    private ShiftAnd(CompiledAutomaton<E> nfa, long first, long firstAtStart, long shifts,
+            long irregular, long[] follow, int[] expressions, long[] expressionMasks,
+            long accepts, long acceptsAtEnd, Compiled compiled) {
+        this.nfa = nfa;
+        this.first = first;
+        this.firstAtStart = firstAtStart;
+        this.shifts = shifts;
+        this.irregular = irregular;
+        this.follow = follow;
+        this.expressions = expressions;
+        this.expressionMasks = expressionMasks;
+        this.accepts = accepts;
+        this.acceptsAtEnd = acceptsAtEnd;
+        this.compiled = compiled;
+    }
+
+    /**
+     * @return a Shift-And run of {@code glushkov}, or null if it has too
+     * many positions or a position is entered with different expressions.
+     */
+    static <E> ShiftAnd<E> build(GlushkovAutomaton<E> glushkov) {
+        int positionCount = glushkov.positionCount();
+        if (positionCount - 1 > MAX_POSITIONS) {
+            return null;
+        }
+
+        // number the positions in depth-first order from the start, so a
+        // position is usually followed by the next one
+        int[] bits = new int[positionCount];
+        Arrays.fill(bits, -1);
+        int bitCount = 0;
+        int[] stack = new int[glushkov.targets.length + 1];
+        int depth = 0;
+        stack[depth++] = GlushkovAutomaton.START;
+        while (depth > 0) {
+            int position = stack[--depth];
+            if (position != GlushkovAutomaton.START) {
+                if (bits[position] >= 0) {
+                    continue;
+                }
+                bits[position] = bitCount++;
+            }
+
+            // push the targets in reverse so the first is numbered first
+            for (int t = glushkov.offsets[position + 1] - 1; t >= glushkov.offsets[position]; t--) {
+                int target = glushkov.targets[t];
+                if (target == GlushkovAutomaton.START) {
+                    return null;
+                }
+                if (bits[target] < 0) {
+                    stack[depth++] = target;
+                }
+            }
+        }
+        for (int position = 1; position < positionCount; position++) {
+            if (bits[position] < 0) {
+                bits[position] = bitCount++;
+            }
+        }
+
+        int[] expressions = new int[bitCount];
+        Arrays.fill(expressions, -1);
+        long[] follow = new long[bitCount];
+        long first = 0;
+        long firstAtStart = 0;
+        for (int position = 0; position < positionCount; position++) {
+            for (int t = glushkov.offsets[position]; t < glushkov.offsets[position + 1]; t++) {
+                int bit = bits[glushkov.targets[t]];
+                int expression = glushkov.expressions[t];
+                if (expressions[bit] < 0) {
+                    expressions[bit] = expression;
+                }
+                else if (expressions[bit] != expression) {
+                    return null;
+                }
+
+                if (position == GlushkovAutomaton.START) {
+                    if (glushkov.conditions[t] == GlushkovAutomaton.ANYWHERE) {
+                        first |= 1L << bit;
+                    }
+                    firstAtStart |= 1L << bit;
+                }
+                else {
+                    // only the start can be at the first token, and no
+                    // token follows the last, so the condition is met
+                    follow[bits[position]] |= 1L << bit;
+                }
+            }
+        }
+
+        long[] expressionMasks = new long[bitCount];
+        for (int i = 0; i < bitCount; i++) {
+            for (int j = 0; j < bitCount; j++) {
+                if (expressions[i] == expressions[j]) {
+                    expressionMasks[i] |= 1L << j;
+                }
+            }
+        }
+
+        long shifts = 0;
+        long irregular = 0;
+        for (int bit = 0; bit < bitCount; bit++) {
+            long next = bit + 1 < MAX_POSITIONS ? 1L << (bit + 1) : 0;
+            if ((follow[bit] & next) != 0) {
+                shifts |= 1L << bit;
+                follow[bit] &= ~next;
+            }
+            if (follow[bit] != 0) {
+                irregular |= 1L << bit;
+            }
+        }
+
+        long accepts = 0;
+        long acceptsAtEnd = 0;
+        for (int position = 1; position < positionCount; position++) {
+            for (int a = glushkov.acceptOffsets[position]; a < glushkov.acceptOffsets[position + 1]; a++) {
+                byte condition = glushkov.acceptConditions[a];
+                if (condition == GlushkovAutomaton.ANYWHERE) {
+                    accepts |= 1L << bits[position];
+                }
+                if ((condition & GlushkovAutomaton.AT_START) == 0) {
+                    acceptsAtEnd |= 1L << bits[position];
+                }
+            }
+        }
+
+        return new ShiftAnd<E>(glushkov.nfa, first, firstAtStart, shifts, irregular, follow,
+                expressions, expressionMasks, accepts, acceptsAtEnd, null);
+    }
+
+    /**
+     * @return a copy of this run that calls a class generated for it, or
+     * null if no class could be generated.
+     */
+    ShiftAnd<E> generate() {
+        Compiled compiled = MatcherGenerator.generate(this);
+        if (compiled == null) {
+            return null;
+        }
+
+        return new ShiftAnd<E>(this.nfa, this.first, this.firstAtStart, this.shifts,
+                this.irregular, this.follow, this.expressions, this.expressionMasks,
+                this.accepts, this.acceptsAtEnd, compiled);
+    }
+
+    /**
+     * @return true iff this run calls a generated class.
+     */
+    boolean isGenerated() {
+        return this.compiled != null;
+    }
+
+    /**
+     * Run over the tokens, as {@link CompiledAutomaton#simulate} runs the
+     * NFA for a single pattern.
+     * @param lastStart the last index where a match may begin.
+     * @param whole true iff the match must end at the last token.
+     * @return true iff a match begins between {@code startIndex} and
+     * {@code lastStart}.
+     */
+    boolean simulate(List<E> tokens, int startIndex, int lastStart, boolean whole) {
+        return this.firstEnd(tokens, startIndex, lastStart, whole) >= 0;
+    }
+
+    /**
+     * @param lastStart the last index where a match may begin.
+     * @return the first index where a match that begins between
+     * {@code startIndex} and {@code lastStart} ends, or -1 if there is
+     * none.
+     */
+    int firstEnd(List<E> tokens, int startIndex, int lastStart) {
+        return this.firstEnd(tokens, startIndex, lastStart, false);
+    }
+
+    /**
+     * @param whole true iff only a match that ends at the last token counts.
+     */
+    private int firstEnd(List<E> tokens, int startIndex, int lastStart, boolean whole) {
+        if (this.compiled != null) {
+            return this.compiled.firstEnd(tokens, startIndex, lastStart, whole);
+        }
+
+        int size = tokens.size();
+        if (startIndex > lastStart) {
+            return -1;
+        }
+
+        CompiledAutomaton<E>.Memo memo = this.nfa.new Memo();
+        long active = 0;
+        for (int index = startIndex; ; index++) {
+            memo.next();
+
+            // the positions so far have consumed a token
+            if (index == size) {
+                return (active & this.acceptsAtEnd) != 0 ? index : -1;
+            }
+            else if (!whole && (active & this.accepts) != 0) {
+                return index;
+            }
+
+            E token = tokens.get(index);
+            long candidates = ((active & this.shifts) << 1) | this.follow(active & this.irregular);
+
+            // start a new path
+            if (index <= lastStart && this.nfa.canStart(token, memo)) {
+                candidates |= index == 0 ? this.firstAtStart : this.first;
+            }
+
+            active = this.step(candidates, token, memo);
+            if (active == 0 && index + 1 > lastStart) {
+                return -1;
+            }
+        }
+    }
+
+    /**
+     * @return the positions the irregular positions in {@code active} are
+     * followed by, besides the next position.
+     */
+    private long follow(long active) {
+        long follow = 0;
+        while (active != 0) {
+            follow |= this.follow[Long.numberOfTrailingZeros(active)];
+            active &= active - 1;
+        }
+
+        return follow;
+    }
+
+    /**
+     * @return the positions of {@code candidates} whose expression applies
+     * to {@code token}.
+     */
+    private long step(long candidates, E token, CompiledAutomaton<E>.Memo memo) {
+        long next = 0;
+        long untried = candidates;
+        while (untried != 0) {
+            int bit = Long.numberOfTrailingZeros(untried);
+            long same = this.expressionMasks[bit];
+            if (memo.apply(this.expressions[bit], token)) {
+                next |= candidates & same;
+            }
+            untried &= ~same;
+        }
+
+        return next;
+    }
+}
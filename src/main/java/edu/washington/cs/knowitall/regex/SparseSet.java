@@ -0,0 +1,72 @@
+package edu.washington.cs.knowitall.regex;
+
+import java.util.Arrays;
+
+/**
+ * A set of non-negative integers with constant time insertion, membership
+ * and clearing.  Members are kept in insertion
+ * order in {@code dense}, and {@code sparse} maps a member to its index
+ * in {@code dense}.  Neither array needs to be reset on {@link #clear()}
+ * since membership is only trusted when both arrays agree.  The arrays
+ * grow if a value beyond the initial capacity is added.
+ *
+ * See Briggs and Torczon, "An Efficient Representation for Sparse Sets".
+ */
+class SparseSet {
+    private int[] dense;
+    private int[] sparse;
+    private int size;
+
+    public SparseSet(int capacity) {
+        this.dense = new int[capacity];
+        this.sparse = new int[capacity];
+    }
+
+    public boolean contains(int value) {
+        if (value >= this.sparse.length) {
+            return false;
+        }
+
+        int index = this.sparse[value];
+        return index < this.size && this.dense[index] == value;
+    }
+
+    /**
+     * Add {@code value} to the set.
+     * @return true iff {@code value} was not already a member.
+     */
+    public boolean add(int value) {
+        if (this.contains(value)) {
+            return false;
+        }
+
+        if (value >= this.sparse.length) {
+            int capacity = Math.max(value + 1, this.sparse.length * 2);
+            this.sparse = Arrays.copyOf(this.sparse, capacity);
+            this.dense = Arrays.copyOf(this.dense, capacity);
+        }
+
+        this.sparse[value] = this.size;
+        this.dense[this.size++] = value;
+        return true;
+    }
+
+    /**
+     * @return the {@code index}th member in insertion order.
+     */
+    public int get(int index) {
+        return this.dense[index];
+    }
+
+    public int size() {
+        return this.size;
+    }
+
+    public boolean isEmpty() {
+        return this.size == 0;
+    }
+
+    public void clear() {
+        this.size = 0;
+    }
+}
@@ -0,0 +1,169 @@
+package edu.washington.cs.knowitall.regex;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Match a regular expression against a stream of tokens that are pushed
+ * one at a time.  The matches are the same as those
+ * {@link RegularExpression#findAll(List)} finds in the whole stream, and
+ * each is passed to the callback as soon as no later token can change it.
+ * The indices of a match are positions in the stream.
+ *
+ * Only the threads of the NFA and the tokens from the earliest start of a
+ * thread on are kept, so memory is bounded by the longest candidate match
+ * rather than the length of the stream.  Once a match is found, the tokens
+ * after it that were already read are searched again from its end.
+ *
+ * This class is not thread-safe.
+ *
+ * @param  <E>  the type of the sequence elements
+ */
+public class StreamingMatcher<E> {
+    /**
+     * Receives the matches of a {@link StreamingMatcher}.
+     *
+     * @param  <E>  the type of the sequence elements
+     */
+    public interface Callback<E> {
+        public void found(Match<E> match);
+    }
+
+    public final RegularExpression<E> regex;
+    private final Callback<E> callback;
+    private final PikeVm<E> vm;
+
+    /**
+     * The tokens from stream position {@code base} on.
+     */
+    private final List<E> buffer = new ArrayList<E>();
+    private int base = 0;
+    private List<E> window = new CompiledAutomaton.OffsetList<E>(0, this.buffer);
+
+    /**
+     * The number of tokens fed and the position of the next token to run.
+     */
+    private int count = 0;
+    private int next = 0;
+    private boolean ended = false;
+
+    public StreamingMatcher(RegularExpression<E> regex, Callback<E> callback) {
+        this.regex = regex;
+        this.callback = callback;
+        this.vm = new PikeVm<E>(regex.auto);
+    }
+
+    /**
+     * Add the next token of the stream, passing the matches it completes
+     * to the callback.
+     */
+    public void feed(E token) {
+        if (this.ended) {
+            throw new IllegalStateException("input has ended");
+        }
+
+        this.buffer.add(token);
+        this.count++;
+        this.run();
+    }
+
+    /**
+     * Mark the end of the stream, passing the remaining matches to the
+     * callback.  No tokens may be fed after this.
+     */
+    public void endOfInput() {
+        if (this.ended) {
+            return;
+        }
+
+        this.ended = true;
+        this.run();
+    }
+
+    /**
+     * @return the number of tokens fed so far.
+     */
+    public int position() {
+        return this.count;
+    }
+
+    /**
+     * @return the number of tokens presently kept.
+     */
+    public int bufferedTokens() {
+        return this.buffer.size();
+    }
+
+    /**
+     * Run the VM over the tokens it has not seen, reporting the matches
+     * that are final.
+     */
+    private void run() {
+        while (true) {
+            while (this.next < this.count) {
+                int index = this.next++;
+                this.vm.visit(this.window, index, true);
+                this.vm.step(this.window.get(index), index + 1);
+
+                if (this.vm.isDead() && this.vm.solution() != null) {
+                    this.report();
+                }
+            }
+
+            if (!this.ended) {
+                this.discard();
+                return;
+            }
+
+            // the end of the stream may complete a match
+            this.vm.visit(this.window, this.count, false);
+            if (this.vm.solution() == null) {
+                this.vm.reset();
+                this.discard();
+                return;
+            }
+
+            this.report();
+        }
+    }
+
+    /**
+     * Pass the match the VM found to the callback and search again from
+     * its end.
+     */
+    private void report() {
+        int[] solution = this.vm.solution();
+        int startIndex = solution[0];
+        int endIndex = solution[1];
+
+        // the match keeps a copy of its tokens and the token after it,
+        // which tells whether it ends the stream, see
+        // CompiledAutomaton.snapshot
+        Match<E> match;
+        if (this.regex.auto.repeatedGroups) {
+            match = this.regex.auto.lookingAt(this.window, startIndex, endIndex);
+        }
+        else {
+            match = PikeVm.buildMatch(this.regex.auto, this.window, solution);
+        }
+
+        this.vm.reset();
+        this.next = endIndex;
+        this.callback.found(match);
+    }
+
+    /**
+     * Drop the tokens before the earliest start of a thread.  The buffer
+     * is only compacted once most of it is unused, so each token is moved
+     * a constant number of times.
+     */
+    private void discard() {
+        int earliest = this.vm.earliestStart();
+        int keep = earliest < 0 ? this.next : earliest;
+        if (2 * (keep - this.base) >= this.buffer.size()) {
+            this.buffer.subList(0, keep - this.base).clear();
+            this.base = keep;
+            this.window = new CompiledAutomaton.OffsetList<E>(this.base, this.buffer);
+        }
+    }
+}
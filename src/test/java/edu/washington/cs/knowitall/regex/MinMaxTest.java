@@ -8,6 +8,7 @@ import java.util.Arrays;
 
 import static junit.framework.Assert.assertNotNull;
 import static junit.framework.Assert.assertNull;
+import static junit.framework.Assert.assertTrue;
 
 public class MinMaxTest {
 
@@ -44,6 +45,57 @@ public class MinMaxTest {
         assertNoMatch(regExTwoToFour, "a", "b", "b", "b", "b", "b", "c");
     }
 
+    @Test
+    public void testCountedMinMax() {
+        RegularExpression<String> regExTenToTwelve = getAbcRegex(10, 12);
+        assertNoMatch(regExTenToTwelve, abc(9));
+        assertMatch(regExTenToTwelve, abc(10));
+        assertMatch(regExTenToTwelve, abc(12));
+        assertNoMatch(regExTenToTwelve, abc(13));
+
+        RegularExpression<String> regExZeroToTwenty = getAbcRegex(0, 20);
+        assertMatch(regExZeroToTwenty, abc(0));
+        assertMatch(regExZeroToTwenty, abc(20));
+        assertNoMatch(regExZeroToTwenty, abc(21));
+
+        // the automaton does not grow with the bounds
+        assertTrue(getAbcRegex(1, 200).auto.stateCount() < getAbcRegex(1, 3).auto.stateCount() * 2);
+    }
+
+    @Test
+    public void testUnboundedMinMax() {
+        RegularExpression<String> regExTwoOrMore = getAbcRegex(2, Expression.MinMax.UNBOUNDED);
+        assertNoMatch(regExTwoOrMore, abc(1));
+        assertMatch(regExTwoOrMore, abc(2));
+        assertMatch(regExTwoOrMore, abc(50));
+
+        RegularExpression<String> regExTwentyOrMore = getAbcRegex(20, Expression.MinMax.UNBOUNDED);
+        assertNoMatch(regExTwentyOrMore, abc(19));
+        assertMatch(regExTwentyOrMore, abc(20));
+        assertMatch(regExTwentyOrMore, abc(50));
+    }
+
+    @Test
+    public void testParseMinMax() {
+        RegularExpression<String> regex = RegularExpressionParsers.word.parse("<a> (?:<b> <b>){10,} <c>");
+        assertNoMatch(regex, abc(18));
+        assertMatch(regex, abc(20));
+        assertNoMatch(regex, abc(21));
+        assertMatch(regex.withLazyDfa(), abc(20));
+        assertNoMatch(regex.withLazyDfa(), abc(21));
+    }
+
+    /**
+     * @return "a", {@code count} times "b", and "c".
+     */
+    private String[] abc(int count) {
+        String[] input = new String[count + 2];
+        Arrays.fill(input, "b");
+        input[0] = "a";
+        input[count + 1] = "c";
+        return input;
+    }
+
     private void assertMatch(RegularExpression<String> regex, String... input) {
         assertNotNull(regex.find(Arrays.asList(input)));
     }
@@ -0,0 +1,53 @@
+package edu.washington.cs.knowitall.regex
+import org.junit.runner.RunWith
+import scala.collection.JavaConversions._
+import org.specs2.mutable.Specification
+import org.specs2.runner.JUnitRunner
+
+@RunWith(classOf[JUnitRunner])
+class CompiledAutomatonTest extends Specification {
+  def split(s: String) = s.split(" ").toList
+
+  def compile(pattern: String) =
+    RegularExpression.build(RegularExpressionParsers.word.parse(pattern).expressions).compile()
+
+  "a compiled automaton" should {
+    val auto = compile("(<x>:<a>) <b>* (?:<c> | $)")
+
+    "keep its transitions in offset arrays" in {
+      auto.edgeOffsets.length must_== auto.stateCount() + 1
+      auto.epsilonOffsets.length must_== auto.stateCount() + 1
+      auto.edgeOffsets.last must_== auto.edgeTargets.length
+      auto.epsilonOffsets.last must_== auto.epsilonTargets.length
+      auto.edgeOffsets.sliding(2).forall { case Array(a, b) => a <= b } must beTrue
+      auto.edgeTargets.forall(t => t >= 0 && t < auto.stateCount()) must beTrue
+    }
+
+    "number each distinct expression once" in {
+      auto.expressions.length must_== 4
+      auto.expressions.map(_.toString).toSet must_== Set("<a>", "<b>", "<c>", "$")
+      auto.edgeExpressions.forall(e => e >= 0 && e < auto.expressions.length) must beTrue
+    }
+
+    "number the groups" in {
+      auto.groupCount() must_== 2
+      auto.groupIndex().toMap must_== Map("x" -> 1)
+    }
+
+    "match like the automaton it was compiled from" in {
+      val graph = RegularExpression.build(RegularExpressionParsers.word.parse("(<x>:<a>) <b>* (?:<c> | $)").expressions)
+      for (sentence <- List("a b b c", "a b", "a c b", "b a", "a")) {
+        val tokens = split(sentence)
+        auto.apply(tokens) must_== graph.apply(tokens)
+        String.valueOf(auto.lookingAt(tokens)) must_== String.valueOf(graph.lookingAt(tokens))
+      }
+
+      auto.apply(split("a b b c")) must beTrue
+      auto.matches(split("a b")) must beTrue
+      auto.matches(split("a c b")) must beFalse
+      auto.contains(split("c a b"), 0) must beTrue
+      auto.lookingAt(split("a b b c d")).endIndex must_== 4
+      auto.find(split("c a b"), 0).startIndex must_== 1
+    }
+  }
+}
@@ -0,0 +1,104 @@
+package edu.washington.cs.knowitall.regex
+import java.util.concurrent.TimeUnit
+import org.junit.runner.RunWith
+import scala.collection.JavaConversions._
+import scala.collection.mutable
+import org.specs2.mutable.Specification
+import org.specs2.runner.JUnitRunner
+import edu.washington.cs.knowitall.regex.Sentences.sentences
+import edu.washington.cs.knowitall.regex.RegexException.BudgetExceededException
+import edu.washington.cs.knowitall.regex.Expression.BaseExpression
+
+@RunWith(classOf[JUnitRunner])
+class RegularExpressionBudgetTest extends Specification {
+  val patterns = List(
+    "<a> <b>*",
+    "(<x>:<a>) (<y>:<b>)? <c>",
+    "(?:<a> | <b>)+ $",
+    "(<x>:<a>)* <b>",
+    "<a>{1,3} <b>")
+
+  patterns.foreach { pattern =>
+    val regex = RegularExpressionParsers.word.parse(pattern)
+
+    pattern should {
+      "find the same matches within an unlimited budget" in {
+        val budget = new Budget(Budget.UNLIMITED)
+        sentences.forall { tokens =>
+          (0 to tokens.size).forall { start =>
+            String.valueOf(regex.find(tokens, start, budget)) == String.valueOf(regex.find(tokens, start)) &&
+            String.valueOf(regex.lookingAt(tokens, start, budget)) == String.valueOf(regex.lookingAt(tokens, start))
+          } &&
+          regex.findAll(tokens, budget).toString == regex.findAll(tokens).toString
+        } must beTrue
+      }
+    }
+  }
+
+  "a budget" should {
+    val regex = RegularExpressionParsers.word.parse("<a> <b>")
+    val tokens = List.fill(100)(List("a", "b")).flatten
+
+    "stop a search that takes too many steps" in {
+      regex.find(tokens, 0, new Budget(50)) must not(beNull)
+      regex.findAll(tokens, new Budget(50)) must throwA[BudgetExceededException]
+    }
+
+    "keep the matches found before the search stopped" in {
+      try {
+        regex.findAll(tokens, new Budget(20))
+        failure
+      }
+      catch {
+        case e: BudgetExceededException =>
+          val matches = e.matches[String]()
+          matches.size must be_>(0)
+          matches.toString must_== regex.findAll(tokens).take(matches.size).toString
+      }
+    }
+
+    "count the steps of every search it is given" in {
+      val budget = new Budget(Budget.UNLIMITED)
+      regex.find(tokens, 0, budget)
+      val steps = budget.stepsTaken
+      regex.find(tokens, 0, budget)
+      budget.stepsTaken must_== 2 * steps
+    }
+
+    "be enough for findAll if it is enough for the searches" in {
+      // count the applications of each base expression to each token, as
+      // in RegularExpressionEvaluationTest.  The counted repetition keeps
+      // the pairs of a match to be retraced when they are read.
+      val counts = mutable.Map[(String, String), Int]().withDefaultValue(0)
+      val parser = new RegularExpressionParser[String]() {
+        override def factory(token: String): BaseExpression[String] = {
+          new BaseExpression[String](token) {
+            override def apply(entity: String) = {
+              counts((token, entity)) += 1
+              entity.split("\\.")(0) == token
+            }
+          }
+        }
+      }
+
+      val counted = parser.parse("(?:(?:<a> <b>) | (?:<a> <c>) | (?:<a>+ <d>)){0,20} <e>")
+      val tokens = "a.0 a.1 c.2 a.3 a.4 d.5 e.6 a.7 c.8 e.9".split(" ").toList
+      val unlimited = new Budget(Budget.UNLIMITED)
+      val expected = counted.findAll(tokens, unlimited).toString
+      val steps = unlimited.stepsTaken
+
+      counts.clear()
+      val matches = counted.findAll(tokens, new Budget(steps))
+      counts.filterKeys(_._1 != "e").values.toSet must_== Set(1)
+      matches.toString must_== expected
+      counted.findAll(tokens, new Budget(steps - 1)) must throwA[BudgetExceededException]
+    }
+
+    "stop a search once cancelled" in {
+      val budget = new Budget(Budget.UNLIMITED, 1, TimeUnit.HOURS)
+      budget.cancel()
+      budget.isCancelled must beTrue
+      regex.find(tokens, 0, budget) must throwA[BudgetExceededException]
+    }
+  }
+}
@@ -0,0 +1,139 @@
+package edu.washington.cs.knowitall.regex
+import org.junit.runner.RunWith
+import scala.collection.JavaConversions._
+import org.specs2.mutable.Specification
+import org.specs2.runner.JUnitRunner
+
+@RunWith(classOf[JUnitRunner])
+class RegularExpressionCaptureTest extends Specification {
+  def split(s: String) = s.split(" ").toList
+
+  "groups captured by slots" should {
+    val regex = RegularExpressionParsers.word.parse("(?:(<first>:<a>) | <c>) (<second>:<b>) (<empty>:<c>?) <d>")
+
+    "be in the order they matched" in {
+      val m = regex.find(split("x a b d"))
+      m.groups().map(_.text).toList must_== List("a b d", "a", "b", "")
+      m.group("second").startIndex must_== 2
+    }
+
+    "omit groups that did not participate" in {
+      val m = regex.find(split("c b c d"))
+      m.groups().map(_.text).toList must_== List("c b c d", "b", "c")
+      m.group("first") must beNull
+    }
+
+    "retrace the pairs" in {
+      val m = regex.find(split("x a b d"))
+      m.pairs().map(_.text).toList must_== List("a b d", "a", "a", "a", "a", "b", "b", "", "d")
+    }
+  }
+
+  "numbered groups" should {
+    val regex = RegularExpressionParsers.word.parse("(<outer>:(<inner>:<a>) <b>) | (<other>:<c>)")
+
+    "be numbered from left to right" in {
+      regex.groupIndex().toMap must_== Map("outer" -> 1, "inner" -> 2, "other" -> 3)
+      regex.groupCount() must_== 4
+    }
+
+    "be retrieved by number" in {
+      val m = regex.find(split("a b"))
+      m.group(0).text must_== "a b"
+      m.group(2).text must_== "a"
+      m.group(3) must beNull
+    }
+
+    "be numbered the same in a match built from its pairs" in {
+      val alternatives = RegularExpressionParsers.word.parse("((<p>:<a>) | (<q>:<b>))* (<r>:<c>)")
+      for (r <- List(regex, alternatives); sentence <- List("a b", "c b", "b a c", "b c")) {
+        val m = r.find(split(sentence))
+        if (m != null) {
+          val built = new Match.IntermediateMatch[String]()
+          built.addAll(m.pairs)
+          for (i <- 0 until r.groupCount()) {
+            String.valueOf(built.group(i)) must_== String.valueOf(m.group(i))
+          }
+        }
+      }
+
+      val built = new Match.IntermediateMatch[String]()
+      built.addAll(alternatives.find(split("b a c")).pairs)
+      built.group(2).text must_== "a"
+      built.group(3).text must_== "b"
+    }
+  }
+
+  "groups in a repetition" should {
+    val regex = RegularExpressionParsers.word.parse("(<x>:<a>)+ <b>")
+
+    "report every match" in {
+      val m = regex.find(split("a a b"))
+      m.groups().map(_.text).toList must_== List("a a b", "a", "a")
+    }
+  }
+
+  "nested groups" should {
+    def bounds(g: Match.Group[String]) = (g.startIndex, g.endIndex, g.tokens.toList)
+
+    "each have their own range" in {
+      val m = RegularExpressionParsers.word.parse("(<outer>:<a> (<inner>:<b> <c>)) <d>").find(split("x a b c d"))
+      bounds(m.group("outer")) must_== (1, 3, List("a", "b", "c"))
+      bounds(m.group("inner")) must_== (2, 3, List("b", "c"))
+    }
+
+    "have a range for each repetition" in {
+      val m = RegularExpressionParsers.word.parse("(<outer>:(<inner>:<a>)+ <b>) <c>").find(split("x a a b c"))
+      bounds(m.group("outer")) must_== (1, 3, List("a", "a", "b"))
+      m.groups().filter(_.expr.toString == "(<inner>:<a>)").map(bounds).toList must_==
+        List((1, 1, List("a")), (2, 2, List("a")))
+    }
+
+    "have no range when empty" in {
+      val m = RegularExpressionParsers.word.parse("(<outer>:<a> (<inner>:<b>?)) <c>").find(split("a c"))
+      bounds(m.group("outer")) must_== (0, 0, List("a"))
+      bounds(m.group("inner")) must_== (-1, -1, Nil)
+    }
+  }
+
+  "lists without random access" should {
+    val regex = RegularExpressionParsers.word.parse("(<x>:<a>)+ <b> $")
+
+    "match like array lists" in {
+      val tokens = split("a b a a b")
+      val linked = new java.util.LinkedList[String](tokens)
+      regex.find(linked).toString must_== regex.find(tokens).toString
+      regex.lookingAt(linked, 2).toString must_== regex.lookingAt(tokens, 2).toString
+      regex.findAll(linked).toString must_== regex.findAll(tokens).toString
+    }
+  }
+
+  "matches" should {
+    def mutable(s: String) = new java.util.ArrayList[String](split(s))
+
+    "not change when the tokens searched do" in {
+      val regex = RegularExpressionParsers.word.parse("(?:(<first>:<a>) | <c>) (<second>:<b>) (<empty>:<c>?) <d>")
+      val tokens = mutable("x a b d")
+      val m = regex.find(tokens)
+      val before = m.toString
+      tokens.set(1, "z")
+      tokens.add(0, "q")
+      tokens.clear()
+      m.toString must_== before
+      m.tokens.toList must_== List("a", "b", "d")
+      m.group("first").text must_== "a"
+      m.group("second").startIndex must_== 2
+    }
+
+    "keep repeated groups and assertions" in {
+      val repeated = RegularExpressionParsers.word.parse("(<x>:<a>)+ <b> $")
+      val tokens = mutable("c a a b")
+      val m = repeated.find(tokens)
+      val before = m.pairs.toString
+      tokens.set(1, "q")
+      tokens.add("z")
+      m.pairs.toString must_== before
+      m.groups().map(_.text).toList must_== List("a a b", "a", "a")
+    }
+  }
+}
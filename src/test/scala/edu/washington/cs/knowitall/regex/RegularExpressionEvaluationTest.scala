@@ -0,0 +1,142 @@
+package edu.washington.cs.knowitall.regex
+import org.junit.runner.RunWith
+import scala.collection.JavaConversions._
+import scala.collection.mutable
+import org.specs2.mutable.Specification
+import org.specs2.runner.JUnitRunner
+import edu.washington.cs.knowitall.regex.Sentences.sentences
+import edu.washington.cs.knowitall.regex.Expression.BaseExpression
+
+@RunWith(classOf[JUnitRunner])
+class RegularExpressionEvaluationTest extends Specification {
+  def split(s: String) = s.split(" ").toList
+
+  def repeat(token: String, n: Int, last: String) = List.fill(n)(token) :+ last
+
+  "nested repetitions" should {
+    // each configuration is visited once per position, so the paths
+    // through the nested stars are not enumerated
+    val regex = RegularExpressionParsers.word.parse("(<a>*)* <b>")
+    val unnamed = RegularExpressionParsers.word.parse("(?:(?:<a>*)*)* <b>")
+
+    "fail in linear time" in {
+      regex.find(repeat("a", 200, "c")) must beNull
+      regex.apply(repeat("a", 200, "c")) must beFalse
+      regex.findAll(repeat("a", 200, "c")) must beEmpty
+      unnamed.find(repeat("a", 200, "c")) must beNull
+    }
+
+    "match in linear time" in {
+      regex.matches(repeat("a", 200, "b")) must beTrue
+      regex.find(repeat("a", 200, "b")).length must_== 201
+      unnamed.lookingAt(repeat("a", 200, "b")).length must_== 201
+    }
+  }
+
+  "the unanchored search" should {
+    "prefer the leftmost start when a later match is longer" in {
+      val regex = RegularExpressionParsers.word.parse("(?:<a> <b>) | (?:<b> <c> <d>)")
+      val m = regex.find(split("x a b c d"))
+      (m.startIndex, m.endIndex) must_== (1, 3)
+    }
+
+    "prefer the longest match of those at the leftmost start" in {
+      val regex = RegularExpressionParsers.word.parse("<a> | (?:<a> <b> <c>) | (?:<b> <c> <d> <e>)")
+      val m = regex.find(split("a b c d e"))
+      (m.startIndex, m.endIndex) must_== (0, 3)
+      regex.findAll(split("a b c d e")).map(_.tokens.mkString(" ")).toList must_== List("a b c")
+    }
+
+    "not start again inside a match" in {
+      val regex = RegularExpressionParsers.word.parse("<a>+ <b>")
+      regex.find(split("a a a b")).startIndex must_== 0
+      regex.findAll(split("a a b a b")).map(_.tokens.mkString(" ")).toList must_== List("a a b", "a b")
+    }
+  }
+
+  "a repetition of an optional expression" should {
+    // (<b>?)+ can match no tokens, so it must not shorten the positions
+    // where a match may start
+    val regex = RegularExpressionParsers.word.parse("<ate> (<b>?)+")
+
+    "match no tokens" in {
+      regex.find(split("a cat ate")).tokens.toList must_== List("ate")
+      regex.findAll(split("a cat ate")).size must_== 1
+      regex.apply(split("ate")) must beTrue
+    }
+  }
+
+  "the expressions on the edges" should {
+    // count the applications of each base expression to each token.  The
+    // tokens are numbered, as in a.3, so each position is counted apart.
+    val counts = mutable.Map[(String, String), Int]().withDefaultValue(0)
+    val parser = new RegularExpressionParser[String]() {
+      override def factory(token: String): BaseExpression[String] = {
+        new BaseExpression[String](token) {
+          override def apply(entity: String) = {
+            counts((token, entity)) += 1
+            entity.split("\\.")(0) == token
+          }
+        }
+      }
+    }
+
+    // <a> begins each alternative, and the counter keeps the automaton
+    // from having a position automaton, so the NFA itself is run
+    val regex = parser.parse("(?:(?:<a> <b>) | (?:<a> <c>) | (?:<a>+ <d>)){0,20} <e>")
+    val tokens = split("a.0 a.1 c.2 a.3 a.4 d.5 e.6 a.7")
+
+    // <e> is also applied by the check for required expressions
+    def once = counts.filterKeys(_._1 != "e").values.toSet must_== Set(1)
+
+    "be applied at most once per position" in {
+      counts.clear()
+      regex.find(tokens).startIndex must_== 1
+      once
+
+      counts.clear()
+      regex.apply(tokens) must beTrue
+      once
+
+      counts.clear()
+      regex.lookingAt(tokens) must beNull
+      once
+
+      counts.clear()
+      regex.findAll(tokens).map(_.startIndex).toList must_== List(1)
+      once
+    }
+
+    "not be applied again until the pairs of a match are read" in {
+      val matches = regex.findAll(tokens)
+      counts.clear()
+      matches.map(m => (m.startIndex, m.endIndex, m.length, m.isEmpty)).toList must_== List((1, 7, 6, false))
+      counts must beEmpty
+
+      matches.head.pairs must not(beEmpty)
+      counts must not(beEmpty)
+    }
+  }
+
+  "apply and matches" should {
+    // groups, assertions and a counted repetition, which has no position
+    // automaton, so the NFA is simulated
+    val patterns = List(
+      "(<x>:<a>) <b>* $",
+      "^ (<a> | <b> <c>)+",
+      "(<x>:<a>)+ (?:<b> | $)",
+      "(?:^ | <a>) (<y>:<b>)? <c>",
+      "(<x>:<a>){2,12} <b>",
+      "(?:<a> | ^) (?:<b> | $)")
+
+    "agree with the matches found" in {
+      patterns.forall { pattern =>
+        val regex = RegularExpressionParsers.word.parse(pattern)
+        sentences.forall { tokens =>
+          regex.apply(tokens) == (regex.find(tokens) != null) &&
+          regex.matches(tokens) == (regex.`match`(tokens) != null)
+        }
+      } must beTrue
+    }
+  }
+}
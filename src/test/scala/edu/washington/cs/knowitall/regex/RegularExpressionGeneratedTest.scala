@@ -0,0 +1,43 @@
+package edu.washington.cs.knowitall.regex
+import org.junit.runner.RunWith
+import scala.collection.JavaConversions._
+import org.specs2.mutable.Specification
+import org.specs2.runner.JUnitRunner
+import edu.washington.cs.knowitall.regex.Sentences.sentences
+
+@RunWith(classOf[JUnitRunner])
+class RegularExpressionGeneratedTest extends Specification {
+  val patterns = List(
+    "<a> <b>*",
+    "^ <a>+ <b>?",
+    "<a>* <b> $",
+    "(<a> | <b>)+ <c>",
+    "^ (<a> | <b> <c>)* $",
+    "(<x>:<a>) (<y>:<b>*) <c>",
+    "(?:<a> <b> <c>) | <b>",
+    "<a>? (?:<b> | ^) <c>")
+
+  patterns.foreach { pattern =>
+    val regex = RegularExpressionParsers.word.parse(pattern)
+
+    pattern should {
+      "match like the interpreter with a generated matcher" in {
+        val generated = regex.withGeneratedMatcher()
+        generated.auto.shiftAnd.isGenerated must beTrue
+
+        sentences.forall { tokens =>
+          generated.apply(tokens) == regex.apply(tokens) &&
+          generated.matches(tokens) == regex.matches(tokens) &&
+          generated.findAll(tokens).toString == regex.findAll(tokens).toString
+        } must beTrue
+      }
+    }
+  }
+
+  "withGeneratedMatcher" should {
+    "return the expression itself if it has no bit-parallel matcher" in {
+      val regex = RegularExpressionParsers.word.parse("<a>{2,20}")
+      regex.withGeneratedMatcher() must be(regex)
+    }
+  }
+}
@@ -0,0 +1,69 @@
+package edu.washington.cs.knowitall.regex
+import org.junit.runner.RunWith
+import scala.collection.JavaConversions._
+import org.specs2.mutable.Specification
+import org.specs2.runner.JUnitRunner
+import edu.washington.cs.knowitall.regex.Sentences.sentences
+
+@RunWith(classOf[JUnitRunner])
+class RegularExpressionGlushkovTest extends Specification {
+  val patterns = List(
+    "<a> <b>*",
+    "^ <a>+ <b>?",
+    "<a>* <b> $",
+    "(<a> | <b>)+ <c>",
+    "^ (<a> | <b> <c>)* $",
+    "(<x>:<a>) (<y>:<b>*) <c>",
+    "(?:<a> <b> <c>) | <b>",
+    "<a>? (?:<b> | ^) <c>",
+    "(?:^ | <a>) (?:$ | <b>)")
+
+  patterns.foreach { pattern =>
+    val regex = RegularExpressionParsers.word.parse(pattern)
+
+    pattern should {
+      "match like the NFA without epsilon transitions" in {
+        val glushkov = regex.auto.glushkov
+        glushkov must not(beNull)
+
+        sentences.forall { tokens =>
+          val m = regex.lookingAt(tokens)
+          glushkov.simulate(tokens, 0, tokens.size, false, null) == (regex.find(tokens) != null) &&
+          glushkov.simulate(tokens, 0, 0, false, null) == (m != null) &&
+          glushkov.simulate(tokens, 0, 0, true, null) == (m != null && m.endIndex == tokens.size)
+        } must beTrue
+      }
+
+      "match like the NFA with bit-parallel steps" in {
+        val shiftAnd = regex.auto.shiftAnd
+        shiftAnd must not(beNull)
+
+        sentences.forall { tokens =>
+          val m = regex.lookingAt(tokens)
+          val first = regex.findAll(tokens).headOption
+          shiftAnd.simulate(tokens, 0, 0, false) == (m != null) &&
+          shiftAnd.simulate(tokens, 0, 0, true) == (m != null && m.endIndex == tokens.size) &&
+          (shiftAnd.firstEnd(tokens, 0, tokens.size) >= 0) == first.isDefined
+        } must beTrue
+      }
+    }
+  }
+
+  "the position automaton" should {
+    "have a state per base expression and the start" in {
+      val regex = RegularExpressionParsers.word.parse("(<x>:<a>) (?:<b> | <c>)* <a>")
+      regex.auto.glushkov.positionCount must_== 5
+      regex.auto.glushkov.positionCount must be_<(regex.auto.stateCount)
+    }
+
+    "only run bit-parallel with at most 64 positions" in {
+      val words = (1 to 64).map("<w" + _ + ">")
+      RegularExpressionParsers.word.parse(words.mkString(" ")).auto.shiftAnd must not(beNull)
+      RegularExpressionParsers.word.parse(words.mkString(" ") + " <a>").auto.shiftAnd must beNull
+    }
+
+    "not be built for an automaton with counters" in {
+      RegularExpressionParsers.word.parse("<a>{2,20}").auto.glushkov must beNull
+    }
+  }
+}
@@ -0,0 +1,75 @@
+package edu.washington.cs.knowitall.regex
+import org.junit.runner.RunWith
+import edu.washington.cs.knowitall.regex.Expression.BaseExpression
+import scala.collection.JavaConversions._
+import org.specs2.mutable.Specification
+import org.specs2.runner.JUnitRunner
+
+@RunWith(classOf[JUnitRunner])
+class RegularExpressionInterningTest extends Specification {
+  def parser(internAcrossPatterns: Boolean) = new RegularExpressionParser[String](internAcrossPatterns) {
+    override def factory(string: String) = new BaseExpression[String](string) {
+      override def apply(token: String) = string == token
+    }
+  }
+
+  "a repeated token" should {
+    val regex = parser(false).parse("<the> <cat> | <the>")
+    val or = regex.expressions(1).asInstanceOf[Expression.Or[String]]
+
+    "be created once within a pattern" in {
+      regex.expressions(0) must be(or.expr1)
+    }
+
+    "still match" in {
+      regex.matches(List("the", "the")) must beTrue
+      regex.matches(List("the", "cat")) must beTrue
+      regex.matches(List("cat", "the")) must beFalse
+    }
+  }
+
+  "a parser" should {
+    "not share tokens across patterns by default" in {
+      val p = parser(false)
+      p.parse("<the>").expressions(0) must not be(p.parse("<the>").expressions(0))
+    }
+
+    "share tokens across patterns if asked to" in {
+      val p = parser(true)
+      p.parse("<the>").expressions(0) must be(p.parse("<the> <cat>").expressions(0))
+    }
+  }
+
+  "the compiled automaton" should {
+    "give base expressions a parser created from the same source one id" in {
+      val p = parser(false)
+      val regex = RegularExpression.compile[String](
+        seqAsJavaList(p.parse("<the>").expressions ++ p.parse("<the>").expressions))
+      regex.auto.expressions.length must_== 1
+    }
+
+    "keep other base expressions with the same source apart" in {
+      def exactly(token: String) = new BaseExpression[String]("x") {
+        override def apply(entity: String) = entity == token
+      }
+
+      val regex = RegularExpression.compile(List[Expression[String]](exactly("1"), exactly("2")))
+      regex.auto.expressions.length must_== 2
+      regex.matches(List("1", "2")) must beTrue
+      regex.matches(List("1", "1")) must beFalse
+    }
+  }
+
+  "a regular expression set" should {
+    "keep base expressions that a parser did not create apart" in {
+      def exactly(token: String) = new BaseExpression[String]("x") {
+        override def apply(entity: String) = entity == token
+      }
+
+      val set = new RegularExpressionSet(List(
+        RegularExpression.compile(List[Expression[String]](exactly("1"))),
+        RegularExpression.compile(List[Expression[String]](exactly("2")))))
+      set.apply(List("2")).toList must_== List(1)
+    }
+  }
+}
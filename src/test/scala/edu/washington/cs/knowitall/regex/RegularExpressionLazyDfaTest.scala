@@ -0,0 +1,54 @@
+package edu.washington.cs.knowitall.regex
+import org.junit.runner.RunWith
+import scala.collection.JavaConversions._
+import org.specs2.mutable.Specification
+import org.specs2.runner.JUnitRunner
+import edu.washington.cs.knowitall.regex.Sentences.sentences
+
+@RunWith(classOf[JUnitRunner])
+class RegularExpressionLazyDfaTest extends Specification {
+  val patterns = List(
+    "<a> <b>*",
+    "^ <a>+ <b>?",
+    "<a>* <b> $",
+    "(<a> | <b>)+ <c>",
+    "^ (<a> | <b> <c>)* $",
+    "(<x>:<a>) (<y>:<b>*) <c>",
+    "(?:<a> <b> <c>) | <b>",
+    "(?:^ <b> <a>{0,3}) | (?:<a> <c>)")
+
+  def agree(regex: RegularExpression[String], dfa: RegularExpression[String]) = {
+    sentences.forall { tokens =>
+      dfa.apply(tokens) == regex.apply(tokens) &&
+      dfa.matches(tokens) == regex.matches(tokens) &&
+      String.valueOf(dfa.find(tokens)) == String.valueOf(regex.find(tokens)) &&
+      dfa.findAll(tokens).toString == regex.findAll(tokens).toString
+    } must beTrue
+  }
+
+  patterns.foreach { pattern =>
+    val regex = RegularExpressionParsers.word.parse(pattern)
+
+    pattern should {
+      "match like the NFA with a lazy DFA" in {
+        agree(regex, regex.withLazyDfa())
+      }
+
+      "match like the NFA when the DFA cache is flushed" in {
+        agree(regex, regex.withLazyDfa(2))
+      }
+    }
+  }
+
+  "withLazyDfa" should {
+    "reject an empty cache" in {
+      RegularExpressionParsers.word.parse("<a>").withLazyDfa(0) must throwA[IllegalArgumentException]
+    }
+
+    "find the leftmost match when a later match ends first" in {
+      val regex = RegularExpressionParsers.word.parse("(?:<a> <b> <c> <c>) | (?:<b> <c>)").withLazyDfa()
+      val m = regex.find(List("x", "a", "b", "c", "c", "b", "c"))
+      (m.startIndex, m.endIndex) must_== (1, 5)
+    }
+  }
+}
@@ -0,0 +1,59 @@
+package edu.washington.cs.knowitall.regex
+import org.junit.runner.RunWith
+import scala.collection.JavaConversions._
+import org.specs2.mutable.Specification
+import org.specs2.runner.JUnitRunner
+import edu.washington.cs.knowitall.regex.Sentences.sentences
+import edu.washington.cs.knowitall.regex.Expression.BaseExpression
+
+@RunWith(classOf[JUnitRunner])
+class RegularExpressionOnePassTest extends Specification {
+  // tokens match a java regular expression, so expressions can overlap
+  val parser = new RegularExpressionParser[String]() {
+    override def factory(token: String): BaseExpression[String] = {
+      new BaseExpression[String](token) {
+        override def apply(entity: String) = entity.matches(token)
+      }
+    }
+  }
+
+  val patterns = List(
+    "(<x>:<a>) (<y>:<b>)? (?:<c> | $)",
+    "^ (<a> <b>)",
+    "(<x>:<.>) <a> (<y>:<b|c>)",
+    "(?:<a|b> <c>) | (?:<a> <b>)",
+    "<a|b>* (<x>:<a>)")
+
+  def groups(m: Match[String]) = if (m == null) "null" else m.groups.toString
+
+  patterns.foreach { pattern =>
+    val regex = parser.parse(pattern)
+
+    pattern should {
+      "find the matches and groups the Pike VM finds" in {
+        regex.auto.onePass must not(beNull)
+
+        val vm = new PikeVm[String](regex.auto)
+        sentences.forall { tokens =>
+          (0 to tokens.size).forall { start =>
+            groups(regex.lookingAt(tokens, start)) == groups(vm.lookingAt(tokens, start, tokens.size)) &&
+            groups(regex.find(tokens, start)) == groups(vm.find(tokens, start, tokens.size))
+          }
+        } must beTrue
+      }
+    }
+  }
+
+  "a one-pass run" should {
+    "leave a token that more than one edge applies to undecided" in {
+      val regex = parser.parse("<a|b>* (<x>:<a>)")
+      regex.auto.onePass.lookingAt(List("b", "a"), 0, 2) must be(OnePass.UNDECIDED)
+      regex.lookingAt(List("b", "a")).group("x").text must_== "a"
+    }
+
+    "not be built when the paths to an edge are ambiguous" in {
+      parser.parse("(?:<a>?)* <b>").auto.onePass must beNull
+      parser.parse("(<x>:<a>)* <b>").auto.onePass must beNull
+    }
+  }
+}
@@ -0,0 +1,68 @@
+package edu.washington.cs.knowitall.regex
+import java.util.concurrent.ForkJoinPool
+import java.util.concurrent.Executors
+import java.util.concurrent.Callable
+import org.junit.runner.RunWith
+import scala.collection.JavaConversions._
+import scala.util.Random
+import org.specs2.mutable.Specification
+import org.specs2.runner.JUnitRunner
+
+@RunWith(classOf[JUnitRunner])
+class RegularExpressionParallelTest extends Specification {
+  val random = new Random(17)
+  val sentences: List[java.util.List[String]] = List.fill(2000) {
+    seqAsJavaList(List.fill(random.nextInt(30))(List("a", "b", "c")(random.nextInt(3))))
+  }
+
+  val regex = RegularExpressionParsers.word.parse("(<x>:<a>) <b>* (?:<c> | $)")
+  val pool = new ForkJoinPool(4)
+
+  "the batch methods" should {
+    "return the sequential results in input order" in {
+      for (r <- List(regex, regex.withLazyDfa())) {
+        r.findAll(sentences, pool).map(_.toString).toList must_== sentences.map(r.findAll(_).toString)
+        r.apply(sentences, pool).toList must_== sentences.map(r.apply(_))
+        r.matches(sentences, pool).toList must_== sentences.map(r.matches(_))
+      }
+    }
+
+    "handle an empty batch" in {
+      regex.findAll(List[java.util.List[String]](), pool) must beEmpty
+    }
+  }
+
+  "a segmented findAll" should {
+    val tokens: java.util.List[String] = seqAsJavaList(sentences.flatMap(asScalaBuffer(_)))
+    val unbounded = RegularExpressionParsers.word.parse("<a> (?:<b> | <c>)* <a> <a>")
+
+    "find the same matches as findAll" in {
+      for (r <- List(regex, unbounded); length <- List(1, 3, 50, 100000)) {
+        r.findAll(tokens, length, pool).toString must_== r.findAll(tokens).toString
+      }
+    }
+
+    "reject empty segments" in {
+      regex.findAll(tokens, 0, pool) must throwA[IllegalArgumentException]
+    }
+  }
+
+  "a regular expression" should {
+    "be safe to share between threads" in {
+      val expected = sentences.map(regex.findAll(_).toString)
+      for (r <- List(regex, regex.withLazyDfa(8))) {
+        val executor = Executors.newFixedThreadPool(8)
+        val futures = (0 until 8).map { i =>
+          executor.submit(new Callable[Boolean] {
+            def call() = Random.shuffle(sentences.indices.toList).forall { j =>
+              r.findAll(sentences(j)).toString == expected(j)
+            }
+          })
+        }
+        futures.forall(_.get) must beTrue
+        executor.shutdown()
+      }
+      success
+    }
+  }
+}
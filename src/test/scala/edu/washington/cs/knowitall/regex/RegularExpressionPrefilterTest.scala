@@ -0,0 +1,52 @@
+package edu.washington.cs.knowitall.regex
+import org.junit.runner.RunWith
+import scala.collection.JavaConversions._
+import scala.collection.mutable
+import org.specs2.mutable.Specification
+import org.specs2.runner.JUnitRunner
+import edu.washington.cs.knowitall.regex.Expression.BaseExpression
+
+@RunWith(classOf[JUnitRunner])
+class RegularExpressionPrefilterTest extends Specification {
+  def split(s: String) = s.split(" ").toList
+
+  // count the applications of each base expression
+  val counts = mutable.Map[String, Int]().withDefaultValue(0)
+  val parser = new RegularExpressionParser[String]() {
+    override def factory(token: String): BaseExpression[String] = {
+      new BaseExpression[String](token) {
+        override def apply(entity: String) = {
+          counts(token) += 1
+          entity == token
+        }
+      }
+    }
+  }
+
+  val regex = parser.parse("<a>* <born> (<in> | <on>) <c>? (?:<d> <e>)+")
+
+  "the required expressions" should {
+    "not reject matches" in {
+      regex.apply(split("x born on d e")) must beTrue
+      regex.find(split("a a born in c d e d e")).endIndex must_== 9
+      regex.matches(split("born in d e")) must beTrue
+    }
+
+    "reject tokens without them before running the automaton" in {
+      counts.clear()
+      regex.apply(split("a a born in c d")) must beFalse
+      regex.findAll(split("a a born in c d")) must beEmpty
+      counts("a") must_== 0
+      counts("c") must_== 0
+    }
+  }
+
+  "the first expressions" should {
+    "include those after optional elements and assertions" in {
+      val regex = RegularExpressionParsers.word.parse("<a>? (?:<b> | ^) <c>")
+      regex.find(split("x b c")).startIndex must_== 1
+      regex.find(split("c c")).startIndex must_== 0
+      regex.findAll(split("c a b c")).map(_.startIndex).toList must_== List(0, 1)
+    }
+  }
+}
@@ -0,0 +1,41 @@
+package edu.washington.cs.knowitall.regex
+import org.junit.runner.RunWith
+import scala.collection.JavaConversions._
+import org.specs2.mutable.Specification
+import org.specs2.runner.JUnitRunner
+
+@RunWith(classOf[JUnitRunner])
+class RegularExpressionSetTest extends Specification {
+  def split(s: String) = s.split(" ").toList
+
+  val patterns = List(
+    "<the> <big> <dog>",
+    "<the> <big> <cat>",
+    "<the> <big>+",
+    "^ <a> <cat>",
+    "(<x>:<dog>) $",
+    "<ate> (<b>?)+")
+  val regexes = patterns.map(RegularExpressionParsers.word.parse(_))
+  val set = new RegularExpressionSet(regexes)
+
+  "a regular expression set" should {
+    "find the same expressions as its members" in {
+      for (sentence <- List("the big dog", "a cat saw the big big cat", "a cat ate", "dog", "")) {
+        val tokens = split(sentence)
+        set.apply(tokens).toList must_== regexes.indices.filter(i => regexes(i).apply(tokens)).toList
+      }
+    }
+
+    "find the first match of each member" in {
+      val tokens = split("the big dog")
+      val matches = set.filterAndFind(tokens)
+      matches.get(0).startIndex must_== 0
+      matches.get(1) must beNull
+      matches.get(4).group("x").text must_== "dog"
+    }
+
+    "share common prefixes" in {
+      set.stateCount() must be_<(regexes.map(_.auto.stateCount()).sum)
+    }
+  }
+}
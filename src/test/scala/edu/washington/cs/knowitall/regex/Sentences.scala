@@ -0,0 +1,14 @@
+package edu.washington.cs.knowitall.regex
+
+// the sentences that specs match exhaustively to compare two ways of
+// matching an expression
+object Sentences {
+  val vocabulary = List("a", "b", "c")
+
+  // every sentence of up to five tokens
+  val sentences = (0 to 5).toList.flatMap { length =>
+    (List(List[String]()) /: (1 to length)) { (sentences, _) =>
+      for (sentence <- sentences; token <- vocabulary) yield (token :: sentence)
+    }
+  }
+}
@@ -0,0 +1,64 @@
+package edu.washington.cs.knowitall.regex
+import org.junit.runner.RunWith
+import scala.collection.JavaConversions._
+import scala.collection.mutable
+import org.specs2.mutable.Specification
+import org.specs2.runner.JUnitRunner
+
+@RunWith(classOf[JUnitRunner])
+class StreamingMatcherTest extends Specification {
+  def split(s: String) = s.split(" ").toList
+
+  def stream(regex: RegularExpression[String], tokens: List[String]) = {
+    val matches = mutable.ListBuffer[Match[String]]()
+    val matcher = new StreamingMatcher[String](regex, new StreamingMatcher.Callback[String] {
+      def found(m: Match[String]) { matches += m }
+    })
+    tokens.foreach(matcher.feed(_))
+    matcher.endOfInput()
+    matches.toList
+  }
+
+  "a streaming matcher" should {
+    val patterns = List("<a> <b>*", "(<x>:<a>)+ <b>", "^ <a> <b>?", "<b> <c>? $", "(?:<a> <b> <c>) | <b>")
+    val sentences = List("a b b c a", "a a b a b", "b c a b c", "a", "")
+
+    "find the same matches as findAll" in {
+      for (pattern <- patterns; sentence <- sentences) {
+        val regex = RegularExpressionParsers.word.parse(pattern)
+        val tokens = split(sentence).filter(!_.isEmpty)
+        stream(regex, tokens).toString must_== regex.findAll(tokens).toString
+      }
+    }
+
+    "report a match as soon as it is final" in {
+      val regex = RegularExpressionParsers.word.parse("<a> <b>+")
+      val matches = mutable.ListBuffer[Match[String]]()
+      val matcher = new StreamingMatcher[String](regex, new StreamingMatcher.Callback[String] {
+        def found(m: Match[String]) { matches += m }
+      })
+      split("x a b b").foreach(matcher.feed(_))
+      matches must beEmpty
+      matcher.feed("c")
+      matches.map(m => (m.startIndex, m.endIndex)).toList must_== List((1, 4))
+      matches.head.group(0).text must_== "a b b"
+    }
+
+    "only keep the tokens of candidate matches" in {
+      val regex = RegularExpressionParsers.word.parse("<a> <b>")
+      val matcher = new StreamingMatcher[String](regex, new StreamingMatcher.Callback[String] {
+        def found(m: Match[String]) {}
+      })
+      (1 to 1000).foreach(i => matcher.feed(if (i % 3 == 0) "a" else "c"))
+      matcher.position must_== 1000
+      matcher.bufferedTokens must be_<(4)
+    }
+
+    "reject tokens after the end of input" in {
+      val matcher = new StreamingMatcher[String](RegularExpressionParsers.word.parse("<a>"),
+        new StreamingMatcher.Callback[String] { def found(m: Match[String]) {} })
+      matcher.endOfInput()
+      matcher.feed("a") must throwA[IllegalStateException]
+    }
+  }
+}